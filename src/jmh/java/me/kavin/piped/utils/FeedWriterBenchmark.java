@@ -0,0 +1,68 @@
+package me.kavin.piped.utils;
+
+import com.rometools.rome.io.FeedException;
+import me.kavin.piped.utils.LegacyFeedOutput.Item;
+import me.kavin.piped.utils.obj.db.Video;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static me.kavin.piped.utils.SampleFeeds.NOW;
+
+/**
+ * Renders a subscription feed of 100 videos, like /feed/rss does, and a playlist of 100 videos, like the playlist RSS
+ * feeds do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FeedWriterBenchmark {
+
+    private static final String DESCRIPTION = "Piped's RSS unauthenticated subscription feed.";
+
+    private List<Video> videos;
+    private List<Item> items;
+
+    @Setup
+    public void setup() {
+        videos = SampleFeeds.videos(100);
+        items = videos.stream()
+                .map(video -> {
+                    String url = "https://piped.video/video?id=" + video.getId();
+                    return new Item(video.getTitle(), url, url, video.getChannel().getUploader());
+                })
+                .toList();
+    }
+
+    @Benchmark
+    public byte[] legacyAtom() throws FeedException {
+        return LegacyFeedOutput.atom(null, null, videos, NOW);
+    }
+
+    @Benchmark
+    public byte[] currentAtom() {
+        FeedWriter feed = FeedWriter.atom("Piped - Feed", DESCRIPTION, "https://piped.video/feed", null, NOW);
+        for (Video video : videos)
+            feed.entry(video, video.getChannel());
+        return feed.finish();
+    }
+
+    @Benchmark
+    public byte[] legacyRss() throws FeedException {
+        return LegacyFeedOutput.rss("Playlist", "https://piped.video/playlist?list=PL123", "Playlist - Piped",
+                "someone", NOW, items);
+    }
+
+    @Benchmark
+    public byte[] currentRss() {
+        FeedWriter feed = FeedWriter.rss("Playlist", "https://piped.video/playlist?list=PL123", "Playlist - Piped",
+                "someone", NOW);
+        for (Item item : items)
+            feed.item(item.title(), item.link(), item.uri(), item.author());
+        return feed.finish();
+    }
+}
@@ -0,0 +1,61 @@
+package me.kavin.piped.utils;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.security.Security;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rewrites the URLs of a single StreamInfo response, like /streams does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class URLUtilsBenchmark {
+
+    private static final String PROXY = "https://pipedproxy.example.com";
+
+    @Param({"false", "true"})
+    public boolean signed;
+
+    private List<String> urls;
+    private byte[] secret;
+
+    @Setup
+    public void setup() {
+        Security.addProvider(new BouncyCastleProvider());
+        urls = SampleURLs.streamInfo();
+        secret = signed ? "not-a-real-secret".getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) throws Exception {
+        for (String url : urls)
+            bh.consume(LegacyURLUtils.rewriteURL(url, PROXY, Map.of(), secret));
+    }
+
+    @Benchmark
+    public void current(Blackhole bh) {
+        for (String url : urls)
+            bh.consume(URLUtils.rewriteURL(url, PROXY, Map.of(), secret));
+    }
+
+    /**
+     * Every request runs on a new virtual thread, which is where a thread local would start from scratch.
+     */
+    @Benchmark
+    public void currentOnVirtualThread(Blackhole bh) throws InterruptedException {
+        Thread.ofVirtual().start(() -> {
+            for (String url : urls)
+                bh.consume(URLUtils.rewriteURL(url, PROXY, Map.of(), secret));
+        }).join();
+    }
+}
@@ -6,6 +6,9 @@ import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import jakarta.persistence.criteria.CriteriaBuilder;
 import me.kavin.piped.consts.Constants;
 import me.kavin.piped.server.ServerLauncher;
+import me.kavin.piped.server.handlers.PubSubHandlers;
+import me.kavin.piped.server.handlers.SearchHandlers;
+import me.kavin.piped.server.handlers.TrendingHandlers;
 import me.kavin.piped.utils.*;
 import me.kavin.piped.utils.matrix.SyncRunner;
 import me.kavin.piped.utils.obj.MatrixHelper;
@@ -100,7 +103,23 @@ public class Main {
             }
         }, 0, TimeUnit.MINUTES.toMillis(60));
 
-        if (!Constants.DISABLE_SERVER)
+        if (!Constants.DISABLE_SERVER) {
+            TrendingHandlers.scheduleRefresh();
+            VideoIndex.start();
+            PubSubHandlers.start();
+            SearchHandlers.loadWarmSet();
+            Runtime.getRuntime().addShutdownHook(new Thread(SearchCache::saveWarmSet));
+            // unauthenticated feeds queue their channels on every node serving them, so this can't be disabled
+            new Timer().scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        UnauthenticatedSubscriptionHelper.flush();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, 0, TimeUnit.SECONDS.toMillis(30));
             new Thread(() -> {
                 try {
                     new ServerLauncher().launch(args);
@@ -108,6 +127,7 @@ public class Main {
                     throw new RuntimeException(e);
                 }
             }).start();
+        }
 
         try (Session ignored = DatabaseSessionFactory.createSession()) {
             System.out.println("Database connection is ready!");
@@ -227,12 +247,28 @@ public class Main {
 
                     tr.commit();
 
+                    LbryHelper.cleanupLBRYIds();
+
+                    if (Constants.FEED_TIMELINES)
+                        TimelineHelper.trimTimelines();
+
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
         }, 0, TimeUnit.MINUTES.toMillis(60));
 
+        new Timer().scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    LbryHelper.resolveQueuedLBRYIds();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, 0, TimeUnit.SECONDS.toMillis(30));
+
         new Timer().scheduleAtFixedRate(new TimerTask() {
             @Override
             public void run() {
@@ -49,6 +49,10 @@ public class Constants {
 
     public static final String PUBSUB_HUB_URL;
 
+    public static final int PUBSUB_WORKERS;
+
+    public static final int PUBSUB_QUEUE_SIZE;
+
     public static final String REQWEST_PROXY;
     public static final String REQWEST_PROXY_USER;
     public static final String REQWEST_PROXY_PASS;
@@ -64,6 +68,18 @@ public class Constants {
 
     public static final int FEED_RETENTION;
 
+    public static final boolean FEED_TIMELINES;
+
+    public static final int FEED_TIMELINE_SIZE;
+
+    public static final long FEED_FANOUT_LIMIT;
+
+    public static final boolean FEED_INDEX;
+
+    public static final int FEED_PAGE_SIZE;
+
+    public static final boolean FEED_UNPAGED;
+
     public static final boolean DISABLE_TIMERS;
 
     public static final String RYD_PROXY_URL;
@@ -76,6 +92,12 @@ public class Constants {
 
     public static final boolean DISABLE_LBRY;
 
+    public static final long STREAMS_CACHE_SIZE;
+
+    public static final long RESPONSE_CACHE_SIZE;
+
+    public static final String SEARCH_WARM_SET_FILE;
+
     public static final int SUBSCRIPTIONS_EXPIRY;
 
     public static final boolean CONSENT_COOKIE;
@@ -136,6 +158,9 @@ public class Constants {
             PUBLIC_URL = getProperty(prop, "API_URL");
             PUBSUB_URL = getProperty(prop, "PUBSUB_URL", PUBLIC_URL);
             PUBSUB_HUB_URL = getProperty(prop, "PUBSUB_HUB_URL", "https://pubsubhubbub.appspot.com/subscribe");
+            PUBSUB_WORKERS = Integer.parseInt(getProperty(prop, "PUBSUB_WORKERS",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            PUBSUB_QUEUE_SIZE = Integer.parseInt(getProperty(prop, "PUBSUB_QUEUE_SIZE", "10000"));
             REQWEST_PROXY = getProperty(prop, "REQWEST_PROXY");
             REQWEST_PROXY_USER = getProperty(prop, "REQWEST_PROXY_USER");
             REQWEST_PROXY_PASS = getProperty(prop, "REQWEST_PROXY_PASS");
@@ -143,6 +168,18 @@ public class Constants {
             COMPROMISED_PASSWORD_CHECK = Boolean.parseBoolean(getProperty(prop, "COMPROMISED_PASSWORD_CHECK", "true"));
             DISABLE_REGISTRATION = Boolean.parseBoolean(getProperty(prop, "DISABLE_REGISTRATION", "false"));
             FEED_RETENTION = Integer.parseInt(getProperty(prop, "FEED_RETENTION", "30"));
+            FEED_TIMELINE_SIZE = Integer.parseInt(getProperty(prop, "FEED_TIMELINE_SIZE", "1000"));
+            FEED_FANOUT_LIMIT = Long.parseLong(getProperty(prop, "FEED_FANOUT_LIMIT", "5000"));
+            FEED_INDEX = Boolean.parseBoolean(getProperty(prop, "FEED_INDEX", "false"));
+            // feeds come from the index whenever it is enabled, so timelines would only be maintained for nothing
+            boolean feedTimelines = Boolean.parseBoolean(getProperty(prop, "FEED_TIMELINES", "false"));
+            if (feedTimelines && FEED_INDEX) {
+                System.err.println("FEED_TIMELINES is ignored, as FEED_INDEX is enabled");
+                feedTimelines = false;
+            }
+            FEED_TIMELINES = feedTimelines;
+            FEED_PAGE_SIZE = Integer.parseInt(getProperty(prop, "FEED_PAGE_SIZE", "100"));
+            FEED_UNPAGED = Boolean.parseBoolean(getProperty(prop, "FEED_UNPAGED", "true"));
             DISABLE_TIMERS = Boolean.parseBoolean(getProperty(prop, "DISABLE_TIMERS", "false"));
             RYD_PROXY_URL = getProperty(prop, "RYD_PROXY_URL", "https://ryd-proxy.kavin.rocks");
             SPONSORBLOCK_SERVERS = List.of(getProperty(prop, "SPONSORBLOCK_SERVERS", "https://sponsor.ajay.app,https://sponsorblock.kavin.rocks")
@@ -150,6 +187,9 @@ public class Constants {
             DISABLE_RYD = Boolean.parseBoolean(getProperty(prop, "DISABLE_RYD", "false"));
             DISABLE_SERVER = Boolean.parseBoolean(getProperty(prop, "DISABLE_SERVER", "false"));
             DISABLE_LBRY = Boolean.parseBoolean(getProperty(prop, "DISABLE_LBRY", "false"));
+            STREAMS_CACHE_SIZE = Long.parseLong(getProperty(prop, "STREAMS_CACHE_SIZE", "256"));
+            RESPONSE_CACHE_SIZE = Long.parseLong(getProperty(prop, "RESPONSE_CACHE_SIZE", "64"));
+            SEARCH_WARM_SET_FILE = getProperty(prop, "SEARCH_WARM_SET_FILE");
             SUBSCRIPTIONS_EXPIRY = Integer.parseInt(getProperty(prop, "SUBSCRIPTIONS_EXPIRY", "30"));
             CONSENT_COOKIE = Boolean.parseBoolean(getProperty(prop, "CONSENT_COOKIE", "true"));
             SENTRY_DSN = getProperty(prop, "SENTRY_DSN", "");
@@ -8,6 +8,7 @@ import io.activej.inject.annotation.Provides;
 import io.activej.inject.module.AbstractModule;
 import io.activej.inject.module.Module;
 import io.activej.launchers.http.MultithreadedHttpServerLauncher;
+import io.activej.promise.Promise;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import me.kavin.piped.consts.Constants;
 import me.kavin.piped.server.handlers.*;
@@ -36,6 +37,8 @@ public class ServerLauncher extends MultithreadedHttpServerLauncher {
 
     private static final HttpHeader FILE_NAME = HttpHeaders.of("x-file-name");
     private static final HttpHeader LAST_ETAG = HttpHeaders.of("x-last-etag");
+    // keeps nginx from buffering event streams
+    private static final HttpHeader ACCEL_BUFFERING = HttpHeaders.of("x-accel-buffering");
 
     @Provides
     Executor executor() {
@@ -75,7 +78,8 @@ public class ServerLauncher extends MultithreadedHttpServerLauncher {
                 })).map(POST, "/webhooks/pubsub", AsyncServlet.ofBlocking(executor, request -> {
                     try {
 
-                        PubSubHandlers.handlePubSub(request.loadBody().getResult().asArray());
+                        if (!PubSubHandlers.handlePubSub(request.loadBody().getResult().asArray()))
+                            return HttpResponse.ofCode(503).withHeader(RETRY_AFTER, "60");
 
                         return HttpResponse.ofCode(204);
 
@@ -115,6 +119,13 @@ public class ServerLauncher extends MultithreadedHttpServerLauncher {
                     } catch (Exception e) {
                         return getErrorResponse(e, request.getPath());
                     }
+                })).map(GET, "/streams/:videoId/dash.mpd", AsyncServlet.ofBlocking(executor, request -> {
+                    try {
+                        return getRawResponse(200, StreamHandlers.dashManifestResponse(request.getPathParameter("videoId")),
+                                "application/dash+xml", "public, s-maxage=21540, max-age=30", true);
+                    } catch (Exception e) {
+                        return getErrorResponse(e, request.getPath());
+                    }
                 })).map(GET, "/clips/:clipId", AsyncServlet.ofBlocking(executor, request -> {
                     try {
                         return getJsonResponse(StreamHandlers.resolveClipId(request.getPathParameter("clipId")),
@@ -295,24 +306,39 @@ public class ServerLauncher extends MultithreadedHttpServerLauncher {
                     }
                 })).map(GET, "/feed", AsyncServlet.ofBlocking(executor, request -> {
                     try {
-                        return getJsonResponse(FeedHandlers.feedResponse(request.getQueryParameter("authToken")),
-                                "private");
+                        return getConditionalResponse(FeedHandlers.feedResponse(request.getQueryParameter("authToken"),
+                                        Boolean.parseBoolean(request.getQueryParameter("paged")), request.getQueryParameter("nextpage"),
+                                        request.getQueryParameter("since"), request.getHeader(IF_NONE_MATCH)),
+                                "application/json", "private");
                     } catch (Exception e) {
                         return getErrorResponse(e, request.getPath());
                     }
                 })).map(GET, "/feed/rss", AsyncServlet.ofBlocking(executor, request -> {
                     try {
-                        return getRawResponse(FeedHandlers.feedResponseRSS(request.getQueryParameter("authToken"),
-                                        request.getQueryParameter("filter")),
+                        return getConditionalResponse(FeedHandlers.feedResponseRSS(request.getQueryParameter("authToken"),
+                                        request.getQueryParameter("filter"), request.getHeader(IF_NONE_MATCH)),
                                 "application/atom+xml", "public, s-maxage=120");
                     } catch (Exception e) {
                         return getErrorResponse(e, request.getPath());
                     }
-                })).map(GET, "/feed/unauthenticated", AsyncServlet.ofBlocking(executor, request -> {
+                })).map(GET, "/feed/stream", request -> Promise.ofBlocking(executor, () ->
+                                FeedHandlers.feedStreamChannels(request.getQueryParameter("authToken"), request.getQueryParameter("channels")))
+                        // the stream is served by the eventloop of the connection, so it has to be opened there
+                        .map((channels, e) -> e != null ? getErrorResponse(e, request.getPath()) :
+                                HttpResponse.ok200()
+                                        .withHeader(CONTENT_TYPE, "text/event-stream")
+                                        .withHeader(CACHE_CONTROL, "no-store")
+                                        .withHeader(ACCEL_BUFFERING, "no")
+                                        .withBodyStream(FeedStreams.listen(channels)))
+                ).map(GET, "/feed/unauthenticated", AsyncServlet.ofBlocking(executor, request -> {
                     try {
-                        return getJsonResponse(FeedHandlers.unauthenticatedFeedResponse(
-                                getArray(request.getQueryParameter("channels"))
-                        ), "public, s-maxage=120");
+                        return getConditionalResponse(FeedHandlers.unauthenticatedFeedResponse(
+                                getArray(request.getQueryParameter("channels")),
+                                Boolean.parseBoolean(request.getQueryParameter("paged")),
+                                request.getQueryParameter("nextpage"),
+                                request.getQueryParameter("since"),
+                                request.getHeader(IF_NONE_MATCH)
+                        ), "application/json", "public, s-maxage=120");
                     } catch (Exception e) {
                         return getErrorResponse(e, request.getPath());
                     }
@@ -320,15 +346,19 @@ public class ServerLauncher extends MultithreadedHttpServerLauncher {
                     try {
                         String[] subscriptions = mapper.readValue(request.loadBody().getResult().asArray(),
                                 String[].class);
-                        return getJsonResponse(FeedHandlers.unauthenticatedFeedResponse(subscriptions), "public, s-maxage=120");
+                        return getConditionalResponse(FeedHandlers.unauthenticatedFeedResponse(subscriptions,
+                                        Boolean.parseBoolean(request.getQueryParameter("paged")), request.getQueryParameter("nextpage"),
+                                        request.getQueryParameter("since"), request.getHeader(IF_NONE_MATCH)),
+                                "application/json", "public, s-maxage=120");
                     } catch (Exception e) {
                         return getErrorResponse(e, request.getPath());
                     }
                 })).map(GET, "/feed/unauthenticated/rss", AsyncServlet.ofBlocking(executor, request -> {
                     try {
-                        return getRawResponse(FeedHandlers.unauthenticatedFeedResponseRSS(
+                        return getConditionalResponse(FeedHandlers.unauthenticatedFeedResponseRSS(
                                 getArray(request.getQueryParameter("channels")),
-                                request.getQueryParameter("filter")
+                                request.getQueryParameter("filter"),
+                                request.getHeader(IF_NONE_MATCH)
                         ), "application/atom+xml", "public, s-maxage=120");
                     } catch (Exception e) {
                         return getErrorResponse(e, request.getPath());
@@ -558,6 +588,16 @@ public class ServerLauncher extends MultithreadedHttpServerLauncher {
         return response;
     }
 
+    private @NotNull HttpResponse getConditionalResponse(FeedHandlers.ConditionalResponse response, String contentType, String cache) {
+        if (response.isNotModified())
+            return HttpResponse.ofCode(304).withHeader(ETAG, response.etag()).withHeader(CACHE_CONTROL, cache);
+
+        HttpResponse httpResponse = getRawResponse(response.body(), contentType, cache);
+        if (response.etag() != null)
+            httpResponse = httpResponse.withHeader(ETAG, response.etag());
+        return httpResponse;
+    }
+
     private @NotNull HttpResponse getErrorResponse(Exception e, String path) {
 
         e = ExceptionHandler.handle(e, path);
@@ -35,10 +35,19 @@ import static me.kavin.piped.utils.CollectionUtils.collectRelatedItems;
 import static me.kavin.piped.utils.URLUtils.getLastThumbnail;
 
 public class ChannelHandlers {
+
+    private static final RevalidatingCache channelCache = new RevalidatingCache(Constants.RESPONSE_CACHE_SIZE,
+            TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1));
+
     public static byte[] channelResponse(String channelPath) throws Exception {
 
         Sentry.setExtra("channelPath", channelPath);
 
+        return channelCache.get(channelPath, TimeUnit.MINUTES.toMillis(10), () -> fetchChannel(channelPath));
+    }
+
+    private static byte[] fetchChannel(String channelPath) throws Exception {
+
         final ChannelInfo info = ChannelInfo.getInfo("https://youtube.com/" + channelPath);
 
         final var preloadedVideosTab = collectPreloadedTabs(info.getTabs())
@@ -132,6 +141,7 @@ public class ChannelHandlers {
                                             if (video.isPresent()) {
                                                 VideoHelpers.updateVideo(id, item);
                                             } else {
+                                                VideoHelpers.recordShortFormContent(item);
                                                 VideoHelpers.handleNewVideo("https://youtube.com/watch?v=" + id, time, channel);
                                             }
                                         } catch (Exception e) {
@@ -250,8 +260,10 @@ public class ChannelHandlers {
                                         // shorts tab doesn't have upload date
                                         // we don't want to fetch each video's upload date
                                         long time = item.getUploadDate().offsetDateTime().toInstant().toEpochMilli();
-                                        if ((System.currentTimeMillis() - time) < TimeUnit.DAYS.toMillis(Constants.FEED_RETENTION))
+                                        if ((System.currentTimeMillis() - time) < TimeUnit.DAYS.toMillis(Constants.FEED_RETENTION)) {
+                                            VideoHelpers.recordShortFormContent(item);
                                             VideoHelpers.handleNewVideo(item.getUrl(), time, channel);
+                                        }
                                     }
                                 } catch (Exception e) {
                                     throw new RuntimeException(e);
@@ -1,16 +1,11 @@
 package me.kavin.piped.server.handlers;
 
-import com.rometools.rome.feed.synd.SyndEntry;
-import com.rometools.rome.feed.synd.SyndEntryImpl;
-import com.rometools.rome.feed.synd.SyndFeed;
-import com.rometools.rome.feed.synd.SyndFeedImpl;
-import com.rometools.rome.io.FeedException;
-import com.rometools.rome.io.SyndFeedOutput;
 import io.sentry.Sentry;
-import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import me.kavin.piped.consts.Constants;
 import me.kavin.piped.server.handlers.auth.AuthPlaylistHandlers;
 import me.kavin.piped.utils.ExceptionHandler;
+import me.kavin.piped.utils.FeedWriter;
+import me.kavin.piped.utils.RevalidatingCache;
 import me.kavin.piped.utils.obj.ContentItem;
 import me.kavin.piped.utils.obj.Playlist;
 import me.kavin.piped.utils.obj.StreamsPage;
@@ -23,10 +18,9 @@ import org.schabi.newpipe.extractor.playlist.PlaylistInfo;
 import org.schabi.newpipe.extractor.stream.StreamInfoItem;
 
 import java.io.IOException;
-import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static me.kavin.piped.consts.Constants.YOUTUBE_SERVICE;
 import static me.kavin.piped.consts.Constants.mapper;
 import static me.kavin.piped.utils.CollectionUtils.collectRelatedItems;
@@ -34,6 +28,10 @@ import static me.kavin.piped.utils.URLUtils.getLastThumbnail;
 import static me.kavin.piped.utils.URLUtils.substringYouTube;
 
 public class PlaylistHandlers {
+
+    private static final RevalidatingCache playlistCache = new RevalidatingCache(Constants.RESPONSE_CACHE_SIZE,
+            TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1));
+
     public static byte[] playlistResponse(String playlistId) throws Exception {
 
         if (StringUtils.isBlank(playlistId))
@@ -45,11 +43,16 @@ public class PlaylistHandlers {
         return playlistYouTubeResponse(playlistId);
     }
 
-    private static byte[] playlistYouTubeResponse(String playlistId)
-            throws IOException, ExtractionException {
+    private static byte[] playlistYouTubeResponse(String playlistId) throws Exception {
 
         Sentry.setExtra("playlistId", playlistId);
 
+        return playlistCache.get(playlistId, TimeUnit.MINUTES.toMillis(10), () -> fetchYouTubePlaylist(playlistId));
+    }
+
+    private static byte[] fetchYouTubePlaylist(String playlistId)
+            throws IOException, ExtractionException {
+
         final PlaylistInfo info = PlaylistInfo.getInfo("https://www.youtube.com/playlist?list=" + playlistId);
 
         final List<ContentItem> relatedStreams = collectRelatedItems(info.getRelatedItems());
@@ -110,32 +113,17 @@ public class PlaylistHandlers {
     }
 
     private static byte[] playlistYouTubeRSSResponse(String playlistId)
-            throws IOException, ExtractionException, FeedException {
+            throws IOException, ExtractionException {
 
         final PlaylistInfo info = PlaylistInfo.getInfo("https://www.youtube.com/playlist?list=" + playlistId);
 
-        final List<SyndEntry> entries = new ObjectArrayList<>();
-
-        SyndFeed feed = new SyndFeedImpl();
-        feed.setFeedType("rss_2.0");
-        feed.setTitle(info.getName());
-        feed.setAuthor(info.getUploaderName());
-        feed.setDescription(String.format("%s - Piped", info.getName()));
-        feed.setLink(Constants.FRONTEND_URL + substringYouTube(info.getUrl()));
-        feed.setPublishedDate(new Date());
-
-        info.getRelatedItems().forEach(item -> {
-            SyndEntry entry = new SyndEntryImpl();
-            entry.setAuthor(item.getUploaderName());
-            entry.setLink(item.getUrl());
-            entry.setUri(item.getUrl());
-            entry.setTitle(item.getName());
-            entries.add(entry);
-        });
+        FeedWriter feed = FeedWriter.rss(info.getName(), Constants.FRONTEND_URL + substringYouTube(info.getUrl()),
+                String.format("%s - Piped", info.getName()), info.getUploaderName(), System.currentTimeMillis());
 
-        feed.setEntries(entries);
+        info.getRelatedItems().forEach(item ->
+                feed.item(item.getName(), item.getUrl(), item.getUrl(), item.getUploaderName()));
 
-        return new SyndFeedOutput().outputString(feed).getBytes(UTF_8);
+        return feed.finish();
 
     }
 
@@ -14,18 +14,46 @@ import org.schabi.newpipe.extractor.localization.DateWrapper;
 import org.xml.sax.InputSource;
 
 import java.io.ByteArrayInputStream;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import static me.kavin.piped.consts.Constants.YOUTUBE_SERVICE;
 
 public class PubSubHandlers {
 
-    private static final LinkedBlockingQueue<String> pubSubQueue = new LinkedBlockingQueue<>();
+    /**
+     * A video announced by a notification, with the time it was published at.
+     */
+    private record QueuedVideo(String videoId, long publishedDate) {
+    }
+
+    private static final ConcurrentLinkedQueue<QueuedVideo> pubSubQueue = new ConcurrentLinkedQueue<>();
+
+    // the videos that are queued or being ingested, so that repeated notifications only ingest them once
+    private static final Set<String> queuedIds = ConcurrentHashMap.newKeySet();
+
+    private static final AtomicInteger queueSize = new AtomicInteger();
+
+    // the workers wait on this while the queue is empty
+    private static final Semaphore available = new Semaphore(0);
+
+    private static final LongAdder processed = new LongAdder();
+    private static final LongAdder rejected = new LongAdder();
 
-    public static void handlePubSub(byte[] body) throws Exception {
+    /**
+     * @return false if the queue was full and some videos weren't queued, the hub should retry the notification later
+     */
+    public static boolean handlePubSub(byte[] body) throws Exception {
         SyndFeed feed = new SyndFeedInput().build(new InputSource(new ByteArrayInputStream(body)));
 
+        boolean accepted = true;
 
         for (var entry : feed.getEntries()) {
             String url = entry.getLinks().get(0).getHref();
@@ -33,68 +61,106 @@ public class PubSubHandlers {
 
             long publishedDate = entry.getPublishedDate().getTime();
 
-            String str = videoId + ":" + publishedDate;
+            if (!queuedIds.add(videoId))
+                continue;
 
-            if (pubSubQueue.contains(str))
+            if (queueSize.incrementAndGet() > Constants.PUBSUB_QUEUE_SIZE) {
+                queueSize.decrementAndGet();
+                queuedIds.remove(videoId);
+                rejected.increment();
+                accepted = false;
                 continue;
+            }
+
+            pubSubQueue.offer(new QueuedVideo(videoId, publishedDate));
+            available.release();
+        }
+
+        return accepted;
+    }
+
+    public static int getQueueSize() {
+        return queueSize.get();
+    }
+
+    /**
+     * Starts the workers ingesting the queued videos, and logs how the queue is doing every minute.
+     */
+    public static void start() {
+        for (int i = 0; i < Constants.PUBSUB_WORKERS; i++)
+            Thread.ofVirtual().name("PubSub-Worker-" + i).start(PubSubHandlers::work);
+
+        new Timer("PubSub-Stats", true).scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                long count = processed.sumThenReset();
+                long dropped = rejected.sumThenReset();
+                int size = getQueueSize();
+
+                if (count > 0 || dropped > 0 || size > 0)
+                    System.out.printf("PubSub: %d videos queued, %d processed and %d rejected in the last minute%n",
+                            size, count, dropped);
+            }
+        }, TimeUnit.MINUTES.toMillis(1), TimeUnit.MINUTES.toMillis(1));
+    }
 
-            pubSubQueue.put(str);
+    private static void work() {
+        while (true) {
+            try {
+                available.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            QueuedVideo video = pubSubQueue.poll();
+            queueSize.decrementAndGet();
+
+            try {
+                ingest(video);
+            } catch (Exception e) {
+                ExceptionHandler.handle(e);
+            } finally {
+                queuedIds.remove(video.videoId());
+                processed.increment();
+            }
         }
     }
 
-    static {
-        for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
-            new Thread(() -> {
+    private static void ingest(QueuedVideo video) throws Exception {
+
+        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+            if (DatabaseHelper.doesVideoExist(s, video.videoId()))
+                return;
+        }
+
+        Sentry.setExtra("videoId", video.videoId());
+        var extractor = YOUTUBE_SERVICE.getStreamExtractor("https://youtube.com/watch?v=" + video.videoId());
+        extractor.fetchPage();
+
+        Multithreading.runAsync(() -> {
+
+            DateWrapper uploadDate;
+
+            try {
+                uploadDate = extractor.getUploadDate();
+            } catch (ParsingException e) {
+                throw new RuntimeException(e);
+            }
+
+            if (uploadDate != null && System.currentTimeMillis() - uploadDate.offsetDateTime().toInstant().toEpochMilli() < TimeUnit.DAYS.toMillis(Constants.FEED_RETENTION)) {
                 try {
-                    while (true) {
-                        String str = pubSubQueue.take();
-
-                        String videoId = StringUtils.substringBefore(str, ":");
-                        long publishedDate = Long.parseLong(StringUtils.substringAfter(str, ":"));
-
-                        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
-                            if (DatabaseHelper.doesVideoExist(s, videoId))
-                                continue;
-                        }
-
-                        try {
-                            Sentry.setExtra("videoId", videoId);
-                            var extractor = YOUTUBE_SERVICE.getStreamExtractor("https://youtube.com/watch?v=" + videoId);
-                            extractor.fetchPage();
-
-                            Multithreading.runAsync(() -> {
-
-                                DateWrapper uploadDate;
-
-                                try {
-                                    uploadDate = extractor.getUploadDate();
-                                } catch (ParsingException e) {
-                                    throw new RuntimeException(e);
-                                }
-
-                                if (uploadDate != null && System.currentTimeMillis() - uploadDate.offsetDateTime().toInstant().toEpochMilli() < TimeUnit.DAYS.toMillis(Constants.FEED_RETENTION)) {
-                                    try {
-                                        MatrixHelper.sendEvent("video.piped.stream.info", new FederatedVideoInfo(
-                                                StringUtils.substring(extractor.getUrl(), -11), StringUtils.substring(extractor.getUploaderUrl(), -24),
-                                                extractor.getName(),
-                                                extractor.getLength(), extractor.getViewCount())
-                                        );
-                                    } catch (Exception e) {
-                                        ExceptionHandler.handle(e);
-                                    }
-                                }
-                            });
-
-                            VideoHelpers.handleNewVideo(extractor, publishedDate, null);
-                        } catch (Exception e) {
-                            ExceptionHandler.handle(e);
-                        }
-                    }
+                    MatrixHelper.sendEvent("video.piped.stream.info", new FederatedVideoInfo(
+                            StringUtils.substring(extractor.getUrl(), -11), StringUtils.substring(extractor.getUploaderUrl(), -24),
+                            extractor.getName(),
+                            extractor.getLength(), extractor.getViewCount())
+                    );
                 } catch (Exception e) {
                     ExceptionHandler.handle(e);
                 }
-            }, "PubSub-Worker-" + i).start();
-        }
+            }
+        });
+
+        VideoHelpers.handleNewVideo(extractor, video.publishedDate(), null);
     }
 
 }
@@ -2,6 +2,9 @@ package me.kavin.piped.server.handlers;
 
 import io.sentry.Sentry;
 import me.kavin.piped.utils.ExceptionHandler;
+import me.kavin.piped.utils.Multithreading;
+import me.kavin.piped.utils.SearchCache;
+import me.kavin.piped.utils.SuggestionsTrie;
 import me.kavin.piped.utils.obj.ContentItem;
 import me.kavin.piped.utils.obj.SearchResults;
 import me.kavin.piped.utils.resp.InvalidRequestResponse;
@@ -22,23 +25,24 @@ import static me.kavin.piped.consts.Constants.mapper;
 import static me.kavin.piped.utils.CollectionUtils.collectRelatedItems;
 
 public class SearchHandlers {
+
     public static byte[] suggestionsResponse(String query)
             throws IOException, ExtractionException {
 
-        if (StringUtils.isEmpty(query))
+        if (StringUtils.isBlank(query))
             ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("query is a required parameter"));
 
         if (query.length() > 100)
             ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("query is too long"));
 
-        return mapper.writeValueAsBytes(YOUTUBE_SERVICE.getSuggestionExtractor().suggestionList(query));
+        return mapper.writeValueAsBytes(getSuggestions(query));
 
     }
 
     public static byte[] opensearchSuggestionsResponse(String query)
             throws IOException, ExtractionException {
 
-        if (StringUtils.isEmpty(query))
+        if (StringUtils.isBlank(query))
             ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("query is a required parameter"));
 
         if (query.length() > 100)
@@ -46,19 +50,53 @@ public class SearchHandlers {
 
         return mapper.writeValueAsBytes(Arrays.asList(
                 query,
-                YOUTUBE_SERVICE.getSuggestionExtractor().suggestionList(query)
+                getSuggestions(query)
         ));
 
     }
 
-    public static byte[] searchResponse(String q, String filter)
+    private static List<String> getSuggestions(String query)
             throws IOException, ExtractionException {
 
+        List<String> suggestions = SuggestionsTrie.get(query);
+
+        if (suggestions != null)
+            return suggestions;
+
+        suggestions = YOUTUBE_SERVICE.getSuggestionExtractor().suggestionList(query);
+
+        SuggestionsTrie.add(query, suggestions);
+
+        return suggestions;
+    }
+
+    public static byte[] searchResponse(String q, String filter) throws Exception {
+
         if (StringUtils.isEmpty(q) || StringUtils.isEmpty(filter))
             ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("query and filter are required parameters"));
 
         Sentry.setExtra("query", q);
 
+        return SearchCache.get(q, filter, null, () -> fetchSearch(q, filter));
+    }
+
+    /**
+     * Fills the search cache with the queries that were popular before the last restart.
+     */
+    public static void loadWarmSet() {
+        for (SearchCache.WarmQuery query : SearchCache.loadWarmSet())
+            Multithreading.runAsyncLimited(() -> {
+                try {
+                    SearchCache.put(query.query(), query.filter(), fetchSearch(query.query(), query.filter()));
+                } catch (Exception e) {
+                    ExceptionHandler.handle(e);
+                }
+            });
+    }
+
+    private static byte[] fetchSearch(String q, String filter)
+            throws IOException, ExtractionException {
+
         final SearchInfo info = SearchInfo.getInfo(YOUTUBE_SERVICE,
                 YOUTUBE_SERVICE.getSearchQHFactory().fromQuery(q, Collections.singletonList(filter), null));
 
@@ -71,12 +109,17 @@ public class SearchHandlers {
 
     }
 
-    public static byte[] searchPageResponse(String q, String filter, String prevpageStr)
-            throws IOException, ExtractionException {
+    public static byte[] searchPageResponse(String q, String filter, String prevpageStr) throws Exception {
 
         if (StringUtils.isEmpty(q) || StringUtils.isEmpty(prevpageStr))
             ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("query and nextpage are required parameter"));
 
+        return SearchCache.get(q, filter, prevpageStr, () -> fetchSearchPage(q, filter, prevpageStr));
+    }
+
+    private static byte[] fetchSearchPage(String q, String filter, String prevpageStr)
+            throws IOException, ExtractionException {
+
         Page prevpage = mapper.readValue(prevpageStr, Page.class);
 
         if (prevpage == null)
@@ -1,6 +1,9 @@
 package me.kavin.piped.server.handlers;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.grack.nanojson.JsonObject;
 import com.grack.nanojson.JsonWriter;
 import io.sentry.ITransaction;
@@ -21,6 +24,7 @@ import org.schabi.newpipe.extractor.Page;
 import org.schabi.newpipe.extractor.comments.CommentsInfo;
 import org.schabi.newpipe.extractor.comments.CommentsInfoItem;
 import org.schabi.newpipe.extractor.exceptions.ContentNotAvailableException;
+import org.schabi.newpipe.extractor.exceptions.ExtractionException;
 import org.schabi.newpipe.extractor.exceptions.GeographicRestrictionException;
 import org.schabi.newpipe.extractor.stream.Description;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
@@ -29,9 +33,8 @@ import org.schabi.newpipe.extractor.utils.JsonUtils;
 import java.io.IOException;
 import java.util.List;
 import java.util.Optional;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static me.kavin.piped.consts.Constants.YOUTUBE_SERVICE;
@@ -43,11 +46,70 @@ import static org.schabi.newpipe.extractor.services.youtube.YoutubeParsingHelper
 import static org.schabi.newpipe.extractor.services.youtube.YoutubeParsingHelper.prepareDesktopJsonBuilder;
 
 public class StreamHandlers {
+
+    // time allowed for the extraction of a video, including all enrichments
+    private static final long STREAMS_BUDGET = TimeUnit.SECONDS.toNanos(10);
+
+    // how much longer to wait for enrichments once the extraction itself is done
+    private static final long ENRICHMENT_GRACE = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Cache<String, String> clips = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .build();
+    private static final SingleFlight<String, String> clipsFlight = new SingleFlight<>();
+
     public static byte[] streamsResponse(String videoId) throws Exception {
 
         Sentry.setExtra("videoId", videoId);
 
-        final var futureStream = Multithreading.supplyAsync(() -> {
+        return StreamsCache.get(videoId, () -> {
+
+            Exception unavailable = UnavailableCache.get(videoId);
+
+            if (unavailable != null)
+                throw unavailable;
+
+            Streams streams;
+
+            try {
+                streams = fetchStreams(videoId);
+            } catch (Exception e) {
+                UnavailableCache.put(videoId, e);
+                throw e;
+            }
+
+            RydHelper.prefetchDislikeRatings(streams.relatedStreams);
+
+            return StreamsCache.entry(streams, mapper.writeValueAsBytes(streams));
+        });
+    }
+
+    public static byte[] dashManifestResponse(String videoId) throws Exception {
+
+        Sentry.setExtra("videoId", videoId);
+
+        return StreamsCache.getManifest(videoId, () -> {
+
+            Streams streams = mapper.readValue(streamsResponse(videoId), Streams.class);
+
+            String manifest = MpdBuilder.build(streams);
+
+            if (manifest == null)
+                ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("No DASH compatible streams found for this video"));
+
+            return StreamsCache.entry(streams, manifest.getBytes(UTF_8));
+        });
+    }
+
+    private static Streams fetchStreams(String videoId) throws Exception {
+
+        // Every subtask of a request shares this deadline, and anything still running once the streams are
+        // returned or the deadline passes is cancelled.
+        final long deadline = System.nanoTime() + STREAMS_BUDGET;
+
+        final List<Future<?>> subtasks = new ObjectArrayList<>();
+
+        final var futureStream = fork(subtasks, () -> {
             Sentry.setExtra("videoId", videoId);
             ITransaction transaction = Sentry.startTransaction("StreamInfo fetch", "fetch");
             try {
@@ -64,27 +126,28 @@ public class StreamHandlers {
             return null;
         });
 
-        final var futureLbryId = Multithreading.supplyAsync(() -> {
+        final var futureLbryId = fork(subtasks, () -> {
             Sentry.setExtra("videoId", videoId);
             try {
                 return LbryHelper.getLBRYId(videoId);
+            } catch (InterruptedException ignored) {
             } catch (Exception e) {
                 ExceptionHandler.handle(e);
             }
             return null;
         });
 
-        final var futureLBRY = Multithreading.supplyAsync(() -> {
+        final var futureLBRY = fork(subtasks, () -> {
             Sentry.setExtra("videoId", videoId);
             ITransaction transaction = Sentry.startTransaction("LBRY Stream fetch", "fetch");
             try {
                 var childTask = transaction.startChild("fetch", "LBRY ID fetch");
-                String lbryId = futureLbryId.get(2, TimeUnit.SECONDS);
+                String lbryId = futureLbryId.get(remaining(deadline), TimeUnit.NANOSECONDS);
                 Sentry.setExtra("lbryId", lbryId);
                 childTask.finish();
 
                 return LbryHelper.getLBRYStreamURL(lbryId);
-            } catch (TimeoutException ignored) {
+            } catch (TimeoutException | InterruptedException | CancellationException ignored) {
             } catch (Exception e) {
                 ExceptionHandler.handle(e);
             } finally {
@@ -93,17 +156,17 @@ public class StreamHandlers {
             return null;
         });
 
-        final var futureLBRYHls = Multithreading.supplyAsync(() -> {
+        final var futureLBRYHls = fork(subtasks, () -> {
             Sentry.setExtra("videoId", videoId);
             ITransaction transaction = Sentry.startTransaction("LBRY HLS fetch", "fetch");
             try {
                 var childTask = transaction.startChild("fetch", "LBRY Stream URL fetch");
-                String lbryUrl = futureLBRY.get(2, TimeUnit.SECONDS);
+                String lbryUrl = futureLBRY.get(remaining(deadline), TimeUnit.NANOSECONDS);
                 Sentry.setExtra("lbryUrl", lbryUrl);
                 childTask.finish();
 
                 return LbryHelper.getLBRYHlsUrl(lbryUrl);
-            } catch (TimeoutException ignored) {
+            } catch (TimeoutException | InterruptedException | CancellationException ignored) {
             } catch (Exception e) {
                 ExceptionHandler.handle(e);
             } finally {
@@ -112,11 +175,12 @@ public class StreamHandlers {
             return null;
         });
 
-        final var futureDislikeRating = Multithreading.supplyAsync(() -> {
+        final var futureDislikeRating = fork(subtasks, () -> {
             Sentry.setExtra("videoId", videoId);
             ITransaction transaction = Sentry.startTransaction("Dislike Rating", "fetch");
             try {
                 return RydHelper.getDislikeRating(videoId);
+            } catch (InterruptedException ignored) {
             } catch (Exception e) {
                 ExceptionHandler.handle(e);
             } finally {
@@ -125,11 +189,24 @@ public class StreamHandlers {
             return null;
         });
 
+        try {
+            return collectStreams(videoId, deadline, futureStream, futureLbryId, futureLBRY, futureLBRYHls, futureDislikeRating);
+        } finally {
+            // interrupted subtasks stop waiting and drop their responses, see RequestUtils#await
+            for (Future<?> subtask : subtasks)
+                subtask.cancel(true);
+        }
+    }
+
+    private static Streams collectStreams(String videoId, long deadline, Future<StreamInfo> futureStream,
+                                          Future<String> futureLbryId, Future<String> futureLBRY,
+                                          Future<String> futureLBRYHls, Future<Double> futureDislikeRating) throws Exception {
+
         StreamInfo info = null;
         Throwable exception = null;
 
         try {
-            info = futureStream.get(10, TimeUnit.SECONDS);
+            info = futureStream.get(remaining(deadline), TimeUnit.NANOSECONDS);
         } catch (ExecutionException e) {
             exception = e.getCause();
             if (
@@ -149,7 +226,15 @@ public class StreamHandlers {
                 List<String> allowedCountries = new ObjectArrayList<>();
 
                 {
-                    var restrictedTree = RequestUtils.sendGetJson(Constants.GEO_RESTRICTION_CHECKER_URL + "/api/region/check?video_id=" + videoId).get();
+                    var restrictionCheck = RequestUtils.sendGetJson(Constants.GEO_RESTRICTION_CHECKER_URL + "/api/region/check?video_id=" + videoId);
+                    JsonNode restrictedTree;
+                    try {
+                        restrictedTree = restrictionCheck.get(remaining(deadline), TimeUnit.NANOSECONDS);
+                    } catch (TimeoutException e) {
+                        restrictionCheck.cancel(true);
+                        // not a property of the video, so it shouldn't be remembered by the UnavailableCache
+                        throw new ExtractionException("Geo restriction check timed out", e);
+                    }
                     if (!restrictedTree.get("restricted").asBoolean()) {
                         assert exception != null;
                         throw (Exception) exception;
@@ -166,13 +251,16 @@ public class StreamHandlers {
 
                 MatrixHelper.sendEvent("video.piped.stream.bypass.request", new FederatedGeoBypassRequest(videoId, allowedCountries));
 
-                var listener = new WaitingListener(10_000);
+                // a wait of 0 would be forever
+                var listener = new WaitingListener(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining(deadline))));
                 GeoRestrictionBypassHelper.makeRequest(videoId, listener);
                 listener.waitFor();
                 FederatedGeoBypassResponse federatedGeoBypassResponse = GeoRestrictionBypassHelper.getResponse(videoId);
 
+                // the wait ran out, another attempt might find an instance in time
                 if (federatedGeoBypassResponse == null)
-                    throw new GeographicRestrictionException("Federated bypass failed, likely not authorized or no suitable instances found for country");
+                    throw new ExtractionException("Federated bypass failed, likely not authorized or no suitable instances found for country",
+                            new TimeoutException("No federated bypass response in time"));
 
                 Streams streams = federatedGeoBypassResponse.getData();
 
@@ -192,44 +280,29 @@ public class StreamHandlers {
                 streams.thumbnailUrl = rewriteURL(streams.thumbnailUrl);
                 streams.uploaderAvatar = rewriteURL(streams.uploaderAvatar);
 
-                String lbryId;
+                final long enrichmentDeadline = Math.min(deadline, System.nanoTime() + ENRICHMENT_GRACE);
 
-                try {
-                    lbryId = futureLbryId.get(2, TimeUnit.SECONDS);
-                } catch (Exception e) {
-                    lbryId = null;
-                }
+                String lbryId = getBefore(futureLbryId, enrichmentDeadline);
 
                 if (lbryId != null) {
                     streams.lbryId = lbryId;
                 }
 
-                String lbryURL;
-
-                try {
-                    lbryURL = futureLBRY.get(3, TimeUnit.SECONDS);
-                } catch (Exception e) {
-                    lbryURL = null;
-                }
+                String lbryURL = getBefore(futureLBRY, enrichmentDeadline);
 
                 if (lbryURL != null)
                     streams.videoStreams.add(0, new PipedStream(-1, lbryURL, "MP4", "LBRY", "video/mp4", false, -1));
 
                 // Attempt to get dislikes calculating with the RYD API rating
                 if (streams.dislikes < 0 && streams.likes >= 0) {
-                    double rating;
-                    try {
-                        rating = futureDislikeRating.get(3, TimeUnit.SECONDS);
-                    } catch (Exception e) {
-                        rating = -1;
-                    }
+                    Double rating = getBefore(futureDislikeRating, enrichmentDeadline);
 
-                    if (rating > 1 && rating <= 5) {
+                    if (rating != null && rating > 1 && rating <= 5) {
                         streams.dislikes = Math.round(streams.likes * ((5 - rating) / (rating - 1)));
                     }
                 }
 
-                return mapper.writeValueAsBytes(streams);
+                return streams;
             } else if (Constants.GEO_RESTRICTION_CHECKER_URL == null) {
                 throw new GeographicRestrictionException("This instance does not have a geo restriction checker set in its configuration");
             }
@@ -242,21 +315,12 @@ public class StreamHandlers {
 
         Streams streams = CollectionUtils.collectStreamInfo(info);
 
-        String lbryURL = null;
+        // The extraction is done, so only give enrichments that are still running a short grace period
+        final long enrichmentDeadline = Math.min(deadline, System.nanoTime() + ENRICHMENT_GRACE);
 
-        try {
-            lbryURL = futureLBRY.get(3, TimeUnit.SECONDS);
-        } catch (Exception e) {
-            // ignored
-        }
-
-        String lbryHlsURL = null;
+        String lbryURL = getBefore(futureLBRY, enrichmentDeadline);
 
-        try {
-            lbryHlsURL = futureLBRYHls.get(4, TimeUnit.SECONDS);
-        } catch (Exception e) {
-            // ignored
-        }
+        String lbryHlsURL = getBefore(futureLBRYHls, enrichmentDeadline);
 
         if (lbryHlsURL != null)
             streams.videoStreams.add(0, new PipedStream(-1, lbryHlsURL, "HLS", "LBRY HLS", "application/x-mpegurl", false, -1));
@@ -283,36 +347,71 @@ public class StreamHandlers {
             });
         }
 
-        String lbryId;
-
-        try {
-            lbryId = futureLbryId.get(2, TimeUnit.SECONDS);
-        } catch (Exception e) {
-            lbryId = null;
-        }
-
-        streams.lbryId = lbryId;
+        streams.lbryId = getBefore(futureLbryId, enrichmentDeadline);
 
         // Attempt to get dislikes calculating with the RYD API rating
         if (streams.dislikes < 0 && streams.likes >= 0) {
-            double rating;
-            try {
-                rating = futureDislikeRating.get(3, TimeUnit.SECONDS);
-            } catch (Exception e) {
-                rating = -1;
-            }
+            Double rating = getBefore(futureDislikeRating, enrichmentDeadline);
 
-            if (rating > 1 && rating <= 5) {
+            if (rating != null && rating > 1 && rating <= 5) {
                 streams.dislikes = Math.round(streams.likes * ((5 - rating) / (rating - 1)));
             }
         }
 
-        return mapper.writeValueAsBytes(streams);
+        return streams;
 
     }
 
+    private static <T> Future<T> fork(List<Future<?>> subtasks, Supplier<T> supplier) {
+        Future<T> future = Multithreading.supplyAsync(supplier);
+        subtasks.add(future);
+        return future;
+    }
+
+    private static long remaining(long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    /**
+     * @return the result of an enrichment, or null if it failed or didn't finish before the deadline
+     */
+    private static <T> T getBefore(Future<T> future, long deadline) {
+        try {
+            return future.get(remaining(deadline), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // ignored
+        }
+        return null;
+    }
+
     public static byte[] resolveClipId(String clipId) throws Exception {
 
+        // clips can't be moved to another video, so they only need to be resolved once
+        String videoId = clips.getIfPresent(clipId);
+
+        if (videoId == null)
+            videoId = clipsFlight.execute(clipId, () -> {
+                String resolved = ClipHelper.getVideoId(clipId);
+
+                if (resolved == null) {
+                    resolved = fetchClipVideoId(clipId);
+                    if (resolved != null)
+                        ClipHelper.insertClip(clipId, resolved);
+                }
+
+                if (resolved != null)
+                    clips.put(clipId, resolved);
+
+                return resolved;
+            });
+
+        return mapper.writeValueAsBytes(new VideoResolvedResponse(videoId));
+    }
+
+    private static String fetchClipVideoId(String clipId) throws Exception {
+
         final byte[] body = JsonWriter.string(prepareDesktopJsonBuilder(
                         getPreferredLocalization(), getPreferredContentCountry())
                         .value("url", "https://www.youtube.com/clip/" + clipId)
@@ -322,33 +421,25 @@ public class StreamHandlers {
         final JsonObject jsonResponse = getJsonPostResponse("navigation/resolve_url",
                 body, getPreferredLocalization());
 
-        final String videoId = JsonUtils.getString(jsonResponse, "endpoint.watchEndpoint.videoId");
-
-        return mapper.writeValueAsBytes(new VideoResolvedResponse(videoId));
+        return JsonUtils.getString(jsonResponse, "endpoint.watchEndpoint.videoId");
     }
 
     public static byte[] commentsResponse(String videoId) throws Exception {
 
         Sentry.setExtra("videoId", videoId);
 
-        CommentsInfo info = CommentsInfo.getInfo("https://www.youtube.com/watch?v=" + videoId);
+        CommentsCache.CommentsPage page = CommentsCache.get(videoId, null, () -> fetchComments(videoId));
 
-        List<Comment> comments = new ObjectArrayList<>();
+        prefetchCommentsPage(videoId, page.nextpage());
 
-        info.getRelatedItems().forEach(comment -> {
-            try {
-                String repliespage = null;
-                if (comment.getReplies() != null)
-                    repliespage = mapper.writeValueAsString(comment.getReplies());
+        return page.body();
+    }
 
-                comments.add(new Comment(comment.getUploaderName(), getLastThumbnail(comment.getUploaderAvatars()),
-                        comment.getCommentId(), Optional.ofNullable(comment.getCommentText()).map(Description::getContent).orElse(null), comment.getTextualUploadDate(),
-                        substringYouTube(comment.getUploaderUrl()), repliespage, comment.getLikeCount(), comment.getReplyCount(),
-                        comment.isHeartedByUploader(), comment.isPinned(), comment.isUploaderVerified(), comment.hasCreatorReply(), comment.isChannelOwner()));
-            } catch (JsonProcessingException e) {
-                ExceptionHandler.handle(e);
-            }
-        });
+    private static CommentsCache.CommentsPage fetchComments(String videoId) throws Exception {
+
+        CommentsInfo info = CommentsInfo.getInfo("https://www.youtube.com/watch?v=" + videoId);
+
+        List<Comment> comments = collectComments(info.getRelatedItems());
 
         String nextpage = null;
         if (info.hasNextPage()) {
@@ -358,7 +449,7 @@ public class StreamHandlers {
 
         CommentsPage commentsItem = new CommentsPage(comments, nextpage, info.isCommentsDisabled(), info.getCommentsCount());
 
-        return mapper.writeValueAsBytes(commentsItem);
+        return new CommentsCache.CommentsPage(mapper.writeValueAsBytes(commentsItem), nextpage);
 
     }
 
@@ -367,13 +458,59 @@ public class StreamHandlers {
         if (StringUtils.isEmpty(prevpageStr))
             ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("nextpage is a required parameter"));
 
+        CommentsCache.CommentsPage page = CommentsCache.get(videoId, prevpageStr, () -> fetchCommentsPage(videoId, prevpageStr));
+
+        prefetchCommentsPage(videoId, page.nextpage());
+
+        return page.body();
+    }
+
+    private static CommentsCache.CommentsPage fetchCommentsPage(String videoId, String prevpageStr) throws Exception {
+
         Page prevpage = mapper.readValue(prevpageStr, Page.class);
 
         ListExtractor.InfoItemsPage<CommentsInfoItem> info = CommentsInfo.getMoreItems(YOUTUBE_SERVICE, "https://www.youtube.com/watch?v=" + videoId, prevpage);
 
+        List<Comment> comments = collectComments(info.getItems());
+
+        String nextpage = null;
+        if (info.hasNextPage()) {
+            Page page = info.getNextPage();
+            nextpage = mapper.writeValueAsString(page);
+        }
+
+        CommentsPage commentsItem = new CommentsPage(comments, nextpage, false, -1);
+
+        return new CommentsCache.CommentsPage(mapper.writeValueAsBytes(commentsItem), nextpage);
+
+    }
+
+    /**
+     * Users almost always scroll further, so fetch the next page while they are reading this one.
+     */
+    private static void prefetchCommentsPage(String videoId, String nextpage) {
+
+        // a prefetched page would be thrown away
+        if (!CommentsCache.isEnabled())
+            return;
+
+        if (nextpage == null || CommentsCache.contains(videoId, nextpage))
+            return;
+
+        Multithreading.runAsync(() -> {
+            try {
+                CommentsCache.get(videoId, nextpage, () -> fetchCommentsPage(videoId, nextpage));
+            } catch (Exception e) {
+                ExceptionHandler.handle(e);
+            }
+        });
+    }
+
+    private static List<Comment> collectComments(List<CommentsInfoItem> items) {
+
         List<Comment> comments = new ObjectArrayList<>();
 
-        info.getItems().forEach(comment -> {
+        items.forEach(comment -> {
             try {
                 String repliespage = null;
                 if (comment.getReplies() != null)
@@ -388,15 +525,6 @@ public class StreamHandlers {
             }
         });
 
-        String nextpage = null;
-        if (info.hasNextPage()) {
-            Page page = info.getNextPage();
-            nextpage = mapper.writeValueAsString(page);
-        }
-
-        CommentsPage commentsItem = new CommentsPage(comments, nextpage, false, -1);
-
-        return mapper.writeValueAsBytes(commentsItem);
-
+        return comments;
     }
 }
@@ -1,6 +1,7 @@
 package me.kavin.piped.server.handlers;
 
 import me.kavin.piped.utils.ExceptionHandler;
+import me.kavin.piped.utils.SingleFlight;
 import me.kavin.piped.utils.obj.ContentItem;
 import me.kavin.piped.utils.resp.InvalidRequestResponse;
 import org.schabi.newpipe.extractor.exceptions.ExtractionException;
@@ -11,18 +12,86 @@ import org.schabi.newpipe.extractor.localization.ContentCountry;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static me.kavin.piped.consts.Constants.YOUTUBE_SERVICE;
 import static me.kavin.piped.consts.Constants.mapper;
 import static me.kavin.piped.utils.CollectionUtils.collectRelatedItems;
 
 public class TrendingHandlers {
-    public static byte[] trendingResponse(String region)
-            throws ExtractionException, IOException {
+
+    // the same as the max-age of the response
+    private static final long REFRESH_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+    private static final SingleFlight<String, byte[]> trendingFlight = new SingleFlight<>();
+
+    // pre-rendered responses of the supported regions
+    private static final Map<String, byte[]> trending = new ConcurrentHashMap<>();
+
+    public static byte[] trendingResponse(String region) throws Exception {
 
         if (region == null)
             ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("region is a required parameter"));
 
+        byte[] cached = trending.get(region);
+
+        if (cached != null)
+            return cached;
+
+        // not refreshed yet, or not a supported region
+        return trendingFlight.execute(region, () -> {
+            byte[] body = fetchTrending(region);
+            if (isSupported(region))
+                trending.putIfAbsent(region, body);
+            return body;
+        });
+    }
+
+    /**
+     * Refreshes the trending page of every supported region in the background, spread evenly over the refresh
+     * interval so that YouTube doesn't see a burst of requests.
+     */
+    public static void scheduleRefresh() {
+
+        final List<String> regions = YOUTUBE_SERVICE.getSupportedCountries().stream()
+                .map(ContentCountry::getCountryCode)
+                .toList();
+
+        if (regions.isEmpty())
+            return;
+
+        final Timer timer = new Timer("Trending-Refresh", true);
+        final long stagger = REFRESH_INTERVAL / regions.size();
+
+        for (int i = 0; i < regions.size(); i++) {
+            final String region = regions.get(i);
+            timer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        trending.put(region, trendingFlight.execute(region, () -> fetchTrending(region)));
+                    } catch (Exception e) {
+                        // keep serving the previous response
+                        ExceptionHandler.handle(e);
+                    }
+                }
+            }, i * stagger, REFRESH_INTERVAL);
+        }
+    }
+
+    private static boolean isSupported(String region) {
+        return YOUTUBE_SERVICE.getSupportedCountries().stream()
+                .anyMatch(country -> country.getCountryCode().equals(region));
+    }
+
+    private static byte[] fetchTrending(String region)
+            throws ExtractionException, IOException {
+
+        // a new kiosk list for every fetch, so that the content country of one region can't leak into another
         KioskList kioskList = YOUTUBE_SERVICE.getKioskList();
         kioskList.forceContentCountry(new ContentCountry(region));
         KioskExtractor<?> extractor = kioskList.getDefaultKioskExtractor();
@@ -1,11 +1,6 @@
 package me.kavin.piped.server.handlers.auth;
 
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.rometools.rome.feed.synd.SyndEntry;
-import com.rometools.rome.feed.synd.SyndEntryImpl;
-import com.rometools.rome.feed.synd.SyndFeed;
-import com.rometools.rome.feed.synd.SyndFeedImpl;
-import com.rometools.rome.io.SyndFeedOutput;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
@@ -33,7 +28,6 @@ import java.io.IOException;
 import java.util.*;
 import java.util.stream.Collectors;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static me.kavin.piped.consts.Constants.YOUTUBE_SERVICE;
 import static me.kavin.piped.consts.Constants.mapper;
 import static me.kavin.piped.utils.URLUtils.rewriteURL;
@@ -86,30 +80,17 @@ public class AuthPlaylistHandlers {
 
             var pl = playlistCompletableFuture.get();
 
-            final List<SyndEntry> entries = new ObjectArrayList<>();
-
-            SyndFeed feed = new SyndFeedImpl();
-            feed.setFeedType("rss_2.0");
-            feed.setTitle(pl.getName());
-            feed.setAuthor(pl.getOwner().getUsername());
-            feed.setDescription(String.format("%s - Piped", pl.getName()));
-            feed.setLink(Constants.FRONTEND_URL + "/playlist?list=" + pl.getPlaylistId());
-            feed.setPublishedDate(new Date());
+            FeedWriter feed = FeedWriter.rss(pl.getName(), Constants.FRONTEND_URL + "/playlist?list=" + pl.getPlaylistId(),
+                    String.format("%s - Piped", pl.getName()), pl.getOwner().getUsername(), System.currentTimeMillis());
 
             var videos = playlistVideosCompletableFuture.get();
 
             for (var video : videos) {
-                SyndEntry entry = new SyndEntryImpl();
-                entry.setAuthor(video.getChannel().getUploader());
-                entry.setLink(Constants.FRONTEND_URL + "/video?id=" + video.getId());
-                entry.setUri(Constants.FRONTEND_URL + "/video?id=" + video.getId());
-                entry.setTitle(video.getTitle());
-                entries.add(entry);
+                String url = Constants.FRONTEND_URL + "/video?id=" + video.getId();
+                feed.item(video.getTitle(), url, url, video.getChannel().getUploader());
             }
 
-            feed.setEntries(entries);
-
-            return new SyndFeedOutput().outputString(feed).getBytes(UTF_8);
+            return feed.finish();
         }
     }
 
@@ -1,16 +1,13 @@
 package me.kavin.piped.server.handlers.auth;
 
-import com.rometools.rome.feed.synd.SyndEntry;
-import com.rometools.rome.feed.synd.SyndFeed;
-import com.rometools.rome.io.FeedException;
-import com.rometools.rome.io.SyndFeedOutput;
 import jakarta.persistence.criteria.CriteriaBuilder;
 import me.kavin.piped.consts.Constants;
 import me.kavin.piped.utils.*;
+import me.kavin.piped.utils.obj.FeedDelta;
 import me.kavin.piped.utils.obj.StreamItem;
+import me.kavin.piped.utils.obj.StreamsPage;
 import me.kavin.piped.utils.obj.SubscriptionChannel;
 import me.kavin.piped.utils.obj.db.Channel;
-import me.kavin.piped.utils.obj.db.UnauthenticatedSubscription;
 import me.kavin.piped.utils.obj.db.User;
 import me.kavin.piped.utils.obj.db.Video;
 import me.kavin.piped.utils.resp.AcceptedResponse;
@@ -26,13 +23,18 @@ import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static me.kavin.piped.consts.Constants.mapper;
-import static me.kavin.piped.utils.URLUtils.rewriteURL;
 
 public class FeedHandlers {
+
+    // videos become visible to a delta once the node that inserted them committed, and once the index of the node
+    // answering picked them up
+    private static final long DELTA_OVERLAP = TimeUnit.MINUTES.toMillis(3);
+
     public static byte[] subscribeResponse(String session, String channelId)
             throws IOException {
 
@@ -55,6 +57,8 @@ public class FeedHandlers {
                     s.merge(user);
                     tr.commit();
 
+                    TimelineHelper.invalidate(user.getId());
+
                     Multithreading.runAsync(() -> {
                         var channel = DatabaseHelper.getChannelFromId(channelId);
                         if (channel == null) {
@@ -93,27 +97,52 @@ public class FeedHandlers {
         }
     }
 
-    public static byte[] feedResponse(String session) throws IOException {
+    /**
+     * A feed, or only its ETag if it matched the one the client already has.
+     */
+    public record ConditionalResponse(@Nullable byte[] body, @Nullable String etag) {
+        public boolean isNotModified() {
+            return body == null;
+        }
+    }
+
+    /**
+     * @param since       the watermark of a client that only wants the videos added since, replaces paging
+     * @param ifNoneMatch the If-None-Match header of the request
+     */
+    public static ConditionalResponse feedResponse(String session, boolean paged, @Nullable String nextpage,
+                                                   @Nullable String since, @Nullable String ifNoneMatch) throws IOException {
 
         if (StringUtils.isBlank(session))
             ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("session is a required parameter"));
 
+        FeedHelpers.FeedCursor after = FeedHelpers.parseCursor(nextpage);
+        Long watermark = FeedHelpers.parseWatermark(since);
+
         User user = DatabaseHelper.getUserFromSession(session);
 
         if (user != null) {
             try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
 
-                List<StreamItem> feedItems = FeedHelpers.generateAuthenticatedFeed(s, user.getId(), Integer.MAX_VALUE)
-                        .parallel().map(video -> {
-                            var channel = video.getChannel();
+                final boolean unpaged = isUnpaged(paged, after);
+
+                String etag = FeedHelpers.createAuthenticatedETag(s, user.getId(), getVariant(unpaged, after, watermark));
+                if (FeedHelpers.matchesETag(ifNoneMatch, etag))
+                    return new ConditionalResponse(null, etag);
+
+                if (watermark != null)
+                    return new ConditionalResponse(createFeedDelta(watermark, insertedAfter ->
+                            FeedHelpers.generateAuthenticatedFeed(s, user.getId(), null, insertedAfter, Constants.FEED_PAGE_SIZE + 1).toList()), etag);
 
-                            return new StreamItem("/watch?v=" + video.getId(), video.getTitle(),
-                                    rewriteURL(video.getThumbnail()), channel.getUploader(), "/channel/" + channel.getUploaderId(),
-                                    rewriteURL(channel.getUploaderAvatar()), null, null, video.getDuration(), video.getViews(),
-                                    video.getUploaded(), channel.isVerified(), video.isShort());
-                        }).toList();
+                if (unpaged) {
+                    List<StreamItem> feedItems = toStreamItems(FeedHelpers.generateAuthenticatedFeed(s, user.getId(), Integer.MAX_VALUE));
+
+                    RydHelper.prefetchDislikeRatings(feedItems);
+
+                    return new ConditionalResponse(mapper.writeValueAsBytes(feedItems), etag);
+                }
 
-                return mapper.writeValueAsBytes(feedItems);
+                return new ConditionalResponse(createFeedPage(FeedHelpers.generateAuthenticatedFeed(s, user.getId(), after, Constants.FEED_PAGE_SIZE + 1).toList()), etag);
             }
         }
 
@@ -121,7 +150,105 @@ public class FeedHandlers {
         return null;
     }
 
-    public static byte[] feedResponseRSS(String session, @Nullable String filter) throws FeedException {
+    /**
+     * Whether to answer with the whole feed as a plain list, like before feeds could be paged.
+     */
+    private static boolean isUnpaged(boolean paged, @Nullable FeedHelpers.FeedCursor after) {
+        return Constants.FEED_UNPAGED && !paged && after == null;
+    }
+
+    private static String getVariant(boolean unpaged, @Nullable FeedHelpers.FeedCursor after, @Nullable Long watermark) {
+        if (watermark != null)
+            return "since:" + watermark;
+        return unpaged ? "all" : after == null ? "page" : "page:" + after.uploaded() + ':' + after.id();
+    }
+
+    /**
+     * @param videos the page of videos, with one more video than the page size if there is a next page
+     */
+    private static byte[] createFeedPage(List<Video> videos) throws IOException {
+        String nextpage = null;
+
+        if (videos.size() > Constants.FEED_PAGE_SIZE) {
+            videos = videos.subList(0, Constants.FEED_PAGE_SIZE);
+            nextpage = FeedHelpers.createCursor(videos.getLast());
+        }
+
+        List<StreamItem> feedItems = toStreamItems(videos.stream());
+
+        RydHelper.prefetchDislikeRatings(feedItems);
+
+        return mapper.writeValueAsBytes(new StreamsPage(nextpage, Collections.unmodifiableList(feedItems)));
+    }
+
+    /**
+     * Only the videos inserted after the watermark, or a hint to fetch the whole feed again when there are too many of
+     * them or the client may still have videos that were removed since.
+     * <p>
+     * The watermark is the time of the request rather than of any video, as videos can be inserted long after they
+     * were uploaded. Deltas overlap by {@link #DELTA_OVERLAP}, so a client has to skip the videos it already has.
+     *
+     * @param videos the videos inserted after the given time, newest first and one more than the page size if there
+     *               are too many for a delta
+     */
+    private static byte[] createFeedDelta(long watermark, LongFunction<List<Video>> videos) throws IOException {
+        if (FeedHelpers.requiresResync(watermark))
+            return mapper.writeValueAsBytes(new FeedDelta(Collections.emptyList(), watermark, true));
+
+        final long now = System.currentTimeMillis();
+
+        List<Video> delta = videos.apply(watermark - DELTA_OVERLAP);
+
+        if (delta.size() > Constants.FEED_PAGE_SIZE)
+            return mapper.writeValueAsBytes(new FeedDelta(Collections.emptyList(), watermark, true));
+
+        List<StreamItem> feedItems = toStreamItems(delta.stream());
+
+        RydHelper.prefetchDislikeRatings(feedItems);
+
+        return mapper.writeValueAsBytes(new FeedDelta(Collections.unmodifiableList(feedItems),
+                Math.max(watermark, now), false));
+    }
+
+    private static List<StreamItem> toStreamItems(Stream<Video> videos) {
+        return videos.parallel().map(FeedHelpers::toStreamItem).toList();
+    }
+
+    /**
+     * The channels whose new videos are pushed to a /feed/stream connection, the subscriptions of the session or
+     * otherwise the channels of an unauthenticated feed.
+     */
+    public static List<String> feedStreamChannels(@Nullable String session, @Nullable String channels) {
+
+        if (StringUtils.isNotBlank(session)) {
+            User user = DatabaseHelper.getUserFromSession(session);
+
+            if (user == null) {
+                ExceptionHandler.throwErrorResponse(new AuthenticationFailureResponse());
+                return null;
+            }
+
+            try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+                return FeedHelpers.getSubscribedChannels(s, user.getId());
+            }
+        }
+
+        if (StringUtils.isBlank(channels))
+            ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("authToken or channels is a required parameter"));
+
+        List<String> filteredChannels = Arrays.stream(channels.split(","))
+                .filter(ChannelHelpers::isValidId)
+                .distinct()
+                .toList();
+
+        if (filteredChannels.isEmpty())
+            ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("No valid channel IDs provided"));
+
+        return filteredChannels;
+    }
+
+    public static ConditionalResponse feedResponseRSS(String session, @Nullable String filter,
+                                                      @Nullable String ifNoneMatch) {
 
         if (StringUtils.isBlank(session))
             ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("session is a required parameter"));
@@ -130,18 +257,18 @@ public class FeedHandlers {
 
         if (user != null) {
             try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
-                SyndFeed feed = FeedHelpers.createRssFeed(user.getUsername());
 
-                final List<SyndEntry> entries = FeedHelpers.generateAuthenticatedFeed(s, user.getId(), 100)
-                        .filter(FeedHelpers.createFeedFilter(filter))
-                        .map(video -> {
-                            var channel = video.getChannel();
-                            return ChannelHelpers.createEntry(video, channel);
-                        }).toList();
+                String etag = FeedHelpers.createAuthenticatedETag(s, user.getId(), "rss:" + filter);
+                if (FeedHelpers.matchesETag(ifNoneMatch, etag))
+                    return new ConditionalResponse(null, etag);
+
+                FeedWriter feed = FeedHelpers.createRssFeed(user.getUsername(), null);
 
-                feed.setEntries(entries);
+                FeedHelpers.generateAuthenticatedFeed(s, user.getId(), 100)
+                        .filter(FeedHelpers.createFeedFilter(filter))
+                        .forEach(video -> feed.entry(video, video.getChannel()));
 
-                return new SyndFeedOutput().outputString(feed).getBytes(UTF_8);
+                return new ConditionalResponse(feed.finish(), etag);
             }
         }
 
@@ -149,34 +276,62 @@ public class FeedHandlers {
         return null;
     }
 
-    public static byte[] unauthenticatedFeedResponse(String[] channelIds) throws Exception {
+    public static ConditionalResponse unauthenticatedFeedResponse(String[] channelIds, boolean paged, @Nullable String nextpage,
+                                                                  @Nullable String since, @Nullable String ifNoneMatch) throws Exception {
+
+        FeedHelpers.FeedCursor after = FeedHelpers.parseCursor(nextpage);
+        Long watermark = FeedHelpers.parseWatermark(since);
 
         Set<String> filteredChannels = Arrays.stream(channelIds)
                 .filter(ChannelHelpers::isValidId)
                 .collect(Collectors.toUnmodifiableSet());
 
+        final boolean unpaged = isUnpaged(paged, after);
+
         if (filteredChannels.isEmpty())
-            return mapper.writeValueAsBytes(Collections.EMPTY_LIST);
+            return new ConditionalResponse(watermark != null ?
+                    mapper.writeValueAsBytes(new FeedDelta(Collections.emptyList(), watermark, false)) : unpaged ?
+                    mapper.writeValueAsBytes(Collections.EMPTY_LIST) :
+                    mapper.writeValueAsBytes(new StreamsPage(null, Collections.emptyList())), null);
+
+        UnauthenticatedSubscriptionHelper.queue(filteredChannels);
+
+        final String variant = getVariant(unpaged, after, watermark);
 
+        String etag;
         try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
-            List<StreamItem> feedItems = FeedHelpers.generateUnauthenticatedFeed(s, filteredChannels, Integer.MAX_VALUE)
-                    .parallel().map(video -> {
-                        var channel = video.getChannel();
+            etag = FeedHelpers.createETag(s, filteredChannels, variant);
+        }
+        if (FeedHelpers.matchesETag(ifNoneMatch, etag))
+            return new ConditionalResponse(null, etag);
+
+        // every delta has a watermark of its own, so they are never shared
+        if (watermark != null)
+            try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+                return new ConditionalResponse(createFeedDelta(watermark, insertedAfter ->
+                        FeedHelpers.generateUnauthenticatedFeed(s, filteredChannels, null, insertedAfter, Constants.FEED_PAGE_SIZE + 1).toList()), etag);
+            }
 
-                        return new StreamItem("/watch?v=" + video.getId(), video.getTitle(),
-                                rewriteURL(video.getThumbnail()), channel.getUploader(), "/channel/" + channel.getUploaderId(),
-                                rewriteURL(channel.getUploaderAvatar()), null, null, video.getDuration(), video.getViews(),
-                                video.getUploaded(), channel.isVerified(), video.isShort());
-                    }).toList();
+        // identical channel sets share the response, however they were sent, and the ETag covers the variant and the
+        // version of the videos, so a cached response always matches the ETag it is sent with
+        return new ConditionalResponse(FeedCache.get(filteredChannels, etag, () -> {
+            try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
 
-            updateSubscribedTime(filteredChannels);
-            addMissingChannels(filteredChannels);
+                if (unpaged) {
+                    List<StreamItem> feedItems = toStreamItems(FeedHelpers.generateUnauthenticatedFeed(s, filteredChannels, Integer.MAX_VALUE));
 
-            return mapper.writeValueAsBytes(feedItems);
-        }
+                    RydHelper.prefetchDislikeRatings(feedItems);
+
+                    return mapper.writeValueAsBytes(feedItems);
+                }
+
+                return createFeedPage(FeedHelpers.generateUnauthenticatedFeed(s, filteredChannels, after, Constants.FEED_PAGE_SIZE + 1).toList());
+            }
+        }), etag);
     }
 
-    public static byte[] unauthenticatedFeedResponseRSS(String[] channelIds, @Nullable String filter) throws Exception {
+    public static ConditionalResponse unauthenticatedFeedResponseRSS(String[] channelIds, @Nullable String filter,
+                                                                     @Nullable String ifNoneMatch) throws Exception {
 
         Set<String> filteredChannels = Arrays.stream(channelIds)
                 .filter(ChannelHelpers::isValidId)
@@ -186,19 +341,22 @@ public class FeedHandlers {
             ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("No valid channel IDs provided"));
 
         try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+
+            String etag = FeedHelpers.createETag(s, filteredChannels, "rss:" + filter);
+            if (FeedHelpers.matchesETag(ifNoneMatch, etag)) {
+                UnauthenticatedSubscriptionHelper.queue(filteredChannels);
+                return new ConditionalResponse(null, etag);
+            }
+
             List<Video> videos = FeedHelpers.generateUnauthenticatedFeed(s, filteredChannels, 100)
                     .filter(FeedHelpers.createFeedFilter(filter))
                     .toList();
 
-            List<SyndEntry> entries = videos.stream()
-                    .map(video -> ChannelHelpers.createEntry(video, video.getChannel()))
-                    .toList();
-
-            SyndFeed feed = FeedHelpers.createRssFeed(null);
+            Channel feedChannel = null;
 
             if (filteredChannels.size() == 1) {
                 if (!videos.isEmpty()) {
-                    ChannelHelpers.addChannelInformation(feed, videos.get(0).getChannel());
+                    feedChannel = videos.get(0).getChannel();
                 } else {
                     String channelId = filteredChannels.stream().findFirst().get();
                     final ChannelInfo info = ChannelInfo.getInfo("https://youtube.com/channel/" + channelId);
@@ -208,81 +366,19 @@ public class FeedHandlers {
 
                     ChannelHelpers.updateChannel(s, channel, StringUtils.abbreviate(info.getName(), 100), info.getAvatars().isEmpty() ? null : info.getAvatars().getLast().getUrl(), info.isVerified());
 
-                    ChannelHelpers.addChannelInformation(feed, channel);
+                    feedChannel = channel;
                 }
             }
 
-            feed.setEntries(entries);
+            FeedWriter feed = FeedHelpers.createRssFeed(null, feedChannel);
+            videos.forEach(video -> feed.entry(video, video.getChannel()));
 
-            updateSubscribedTime(filteredChannels);
-            addMissingChannels(filteredChannels);
+            UnauthenticatedSubscriptionHelper.queue(filteredChannels);
 
-            return new SyndFeedOutput().outputString(feed).getBytes(UTF_8);
+            return new ConditionalResponse(feed.finish(), etag);
         }
     }
 
-    private static void updateSubscribedTime(Collection<String> channelIds) {
-        Multithreading.runAsync(() -> {
-            try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
-                var tr = s.beginTransaction();
-                var cb = s.getCriteriaBuilder();
-                var cu = cb.createCriteriaUpdate(UnauthenticatedSubscription.class);
-                var root = cu.getRoot();
-                cu
-                        .set(root.get("subscribedAt"), System.currentTimeMillis())
-                        .where(cb.and(
-                                root.get("id").in(channelIds),
-                                cb.lt(root.get("subscribedAt"), System.currentTimeMillis() - (TimeUnit.DAYS.toMillis(Constants.SUBSCRIPTIONS_EXPIRY) / 2))
-                        ));
-                s.createMutationQuery(cu).executeUpdate();
-                tr.commit();
-            } catch (Exception e) {
-                ExceptionHandler.handle(e);
-            }
-        });
-    }
-
-    private static void addMissingChannels(Collection<String> channelIds) {
-        Multithreading.runAsyncLimited(() -> {
-            try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
-
-                var cb = s.getCriteriaBuilder();
-
-                {
-                    var query = cb.createQuery();
-                    var root = query.from(UnauthenticatedSubscription.class);
-                    query.select(root.get("id"))
-                            .where(root.get("id").in(channelIds));
-
-                    List<Object> existing = s.createQuery(query).setTimeout(20).list();
-
-                    var tr = s.beginTransaction();
-                    channelIds.stream()
-                            .filter(id -> !existing.contains(id))
-                            .map(UnauthenticatedSubscription::new)
-                            .forEach(s::insert);
-                    tr.commit();
-                }
-
-                {
-                    var query = cb.createQuery();
-                    var root = query.from(me.kavin.piped.utils.obj.db.Channel.class);
-                    query.select(root.get("id"))
-                            .where(root.get("id").in(channelIds));
-
-                    List<Object> existing = s.createQuery(query).setTimeout(20).list();
-
-                    channelIds.stream()
-                            .filter(id -> !existing.contains(id))
-                            .forEach(id -> Multithreading.runAsyncLimited(() -> DatabaseHelper.saveChannel(id)));
-                }
-
-            } catch (Exception e) {
-                ExceptionHandler.handle(e);
-            }
-        });
-    }
-
     public static byte[] importResponse(String session, String[] channelIds, boolean override) throws IOException {
 
         if (StringUtils.isBlank(session))
@@ -305,6 +401,8 @@ public class FeedHandlers {
                         var tr = s.beginTransaction();
                         s.merge(user);
                         tr.commit();
+
+                        TimelineHelper.invalidate(user.getId());
                     }
                 } catch (Exception e) {
                     ExceptionHandler.handle(e);
@@ -410,6 +508,7 @@ public class FeedHandlers {
                 s.createNativeMutationQuery("delete from users_subscribed where subscriber = :id and channel = :channel")
                         .setParameter("id", user.getId()).setParameter("channel", channelId).executeUpdate();
                 tr.commit();
+                TimelineHelper.invalidate(user.getId());
                 return mapper.writeValueAsBytes(new AcceptedResponse());
             }
 
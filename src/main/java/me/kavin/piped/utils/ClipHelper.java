@@ -0,0 +1,30 @@
+package me.kavin.piped.utils;
+
+import me.kavin.piped.utils.obj.db.Clip;
+import org.hibernate.StatelessSession;
+
+public class ClipHelper {
+
+    public static String getVideoId(String clipId) {
+        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+            Clip clip = s.get(Clip.class, clipId);
+            return clip == null ? null : clip.getVideoId();
+        }
+    }
+
+    public static void insertClip(String clipId, String videoId) {
+        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+            var tr = s.beginTransaction();
+            try {
+                s.createNativeMutationQuery("INSERT INTO clips (id, video_id) VALUES (?, ?) ON CONFLICT (id) DO NOTHING")
+                        .setParameter(1, clipId)
+                        .setParameter(2, videoId)
+                        .executeUpdate();
+                tr.commit();
+            } catch (Exception e) {
+                tr.rollback();
+                ExceptionHandler.handle(e);
+            }
+        }
+    }
+}
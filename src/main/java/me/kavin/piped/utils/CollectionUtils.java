@@ -107,6 +107,8 @@ public class CollectionUtils {
 
         StreamInfoItem item = (StreamInfoItem) o;
 
+        VideoHelpers.recordShortFormContent(item);
+
         return new StreamItem(substringYouTube(item.getUrl()), item.getName(),
                 getLastThumbnail(item.getThumbnails()),
                 item.getUploaderName(), substringYouTube(item.getUploaderUrl()),
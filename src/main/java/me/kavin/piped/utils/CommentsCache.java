@@ -0,0 +1,68 @@
+package me.kavin.piped.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import me.kavin.piped.consts.Constants;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches rendered comment pages by video and page token, along with the token of the page after them so that it
+ * can be prefetched.
+ */
+public class CommentsCache {
+
+    private static final Cache<String, CommentsPage> cache = Caffeine.newBuilder()
+            .maximumWeight(Constants.RESPONSE_CACHE_SIZE * 1024 * 1024)
+            .weigher((String key, CommentsPage page) -> page.body().length)
+            // the same as the max-age of the first page, continuation tokens stay valid for a lot longer
+            .expireAfterWrite(20, TimeUnit.MINUTES)
+            .build();
+
+    private static final SingleFlight<String, CommentsPage> flight = new SingleFlight<>();
+
+    /**
+     * @param pageToken the token of the page, or null for the first page
+     */
+    public static CommentsPage get(String videoId, String pageToken, Callable<CommentsPage> loader) throws Exception {
+
+        final String key = getKey(videoId, pageToken);
+
+        if (!isEnabled())
+            return flight.execute(key, loader);
+
+        CommentsPage cached = cache.getIfPresent(key);
+
+        if (cached != null)
+            return cached;
+
+        return flight.execute(key, () -> {
+            CommentsPage page = loader.call();
+            cache.put(key, page);
+            return page;
+        });
+    }
+
+    /**
+     * Pages are only kept when the response cache is enabled, otherwise they are just fetched once for concurrent
+     * requests.
+     */
+    public static boolean isEnabled() {
+        return Constants.RESPONSE_CACHE_SIZE > 0;
+    }
+
+    public static boolean contains(String videoId, String pageToken) {
+        return cache.getIfPresent(getKey(videoId, pageToken)) != null;
+    }
+
+    private static String getKey(String videoId, String pageToken) {
+        return pageToken == null ? videoId : videoId + '\n' + pageToken;
+    }
+
+    /**
+     * @param nextpage the token of the following page, or null if this is the last one
+     */
+    public record CommentsPage(byte[] body, String nextpage) {
+    }
+}
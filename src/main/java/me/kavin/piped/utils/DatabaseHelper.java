@@ -229,8 +229,10 @@ public class DatabaseHelper {
                         long time = item.getUploadDate() != null
                                 ? item.getUploadDate().offsetDateTime().toInstant().toEpochMilli()
                                 : System.currentTimeMillis();
-                        if ((System.currentTimeMillis() - time) < TimeUnit.DAYS.toMillis(Constants.FEED_RETENTION))
+                        if ((System.currentTimeMillis() - time) < TimeUnit.DAYS.toMillis(Constants.FEED_RETENTION)) {
+                            VideoHelpers.recordShortFormContent(item);
                             VideoHelpers.handleNewVideo(item.getUrl(), time, channel);
+                        }
                     });
         });
 
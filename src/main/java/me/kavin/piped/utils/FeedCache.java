@@ -0,0 +1,135 @@
+package me.kavin.piped.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import me.kavin.piped.consts.Constants;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches rendered unauthenticated feeds by a hash of their sorted channel set, so that requests for the same
+ * subscriptions share an entry regardless of how the channels were ordered or passed.
+ * <p>
+ * Entries are dropped as soon as one of their channels gets a new video, and otherwise live for as long as the
+ * s-maxage of the response, so they are never staler than what a shared cache may already serve.
+ */
+public class FeedCache {
+
+    private static final Cache<String, Entry> cache = Caffeine.newBuilder()
+            .maximumWeight(Constants.RESPONSE_CACHE_SIZE * 1024 * 1024)
+            .weigher((String key, Entry entry) -> entry.body().length)
+            .expireAfterWrite(120, TimeUnit.SECONDS)
+            // runs as part of the eviction, so it can't race with the entry being loaded again
+            .evictionListener((String key, Entry entry, RemovalCause cause) -> {
+                if (key != null && entry != null)
+                    unindex(key, entry.channels());
+            })
+            .build();
+
+    /**
+     * The keys of the cached feeds each channel is part of.
+     */
+    private static final ConcurrentHashMap<String, Set<String>> channelKeys = new ConcurrentHashMap<>();
+
+    private static final SingleFlight<String, byte[]> flight = new SingleFlight<>();
+
+    /**
+     * @param channelIds the validated channel IDs of the feed
+     * @param variant    anything else the response depends on, like the page
+     */
+    public static byte[] get(Set<String> channelIds, String variant, Callable<byte[]> loader) throws Exception {
+
+        final String[] channels = channelIds.toArray(String[]::new);
+        Arrays.sort(channels);
+
+        final String key = getKey(channels, variant);
+
+        if (Constants.RESPONSE_CACHE_SIZE <= 0)
+            return flight.execute(key, loader);
+
+        Entry cached = cache.getIfPresent(key);
+
+        if (cached != null)
+            return cached.body();
+
+        return flight.execute(key, () -> {
+            // indexed before loading, so that an invalidation while the feed is loaded takes the key with it
+            for (String channel : channels)
+                channelKeys.compute(channel, (k, keys) -> {
+                    if (keys == null)
+                        keys = ConcurrentHashMap.newKeySet();
+                    keys.add(key);
+                    return keys;
+                });
+
+            final byte[] body;
+            try {
+                body = loader.call();
+            } catch (Exception e) {
+                unindex(key, channels);
+                throw e;
+            }
+
+            cache.put(key, new Entry(body, channels));
+
+            // the feed may be missing a video of a channel that was invalidated while it was loaded
+            for (String channel : channels) {
+                Set<String> keys = channelKeys.get(channel);
+                if (keys == null || !keys.contains(key)) {
+                    remove(key);
+                    break;
+                }
+            }
+
+            return body;
+        });
+    }
+
+    /**
+     * Drops all cached feeds that include the channel.
+     */
+    public static void invalidate(String channelId) {
+        Set<String> keys = channelKeys.remove(channelId);
+        if (keys != null)
+            keys.forEach(FeedCache::remove);
+    }
+
+    private static void remove(String key) {
+        Entry entry = cache.asMap().remove(key);
+        if (entry != null)
+            unindex(key, entry.channels());
+    }
+
+    private static void unindex(String key, String[] channels) {
+        for (String channel : channels)
+            channelKeys.computeIfPresent(channel, (k, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+    }
+
+    private static String getKey(String[] channels, String variant) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String channel : channels) {
+                md.update(channel.getBytes(StandardCharsets.UTF_8));
+                md.update((byte) ',');
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(md.digest()) + '\n' + variant;
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private record Entry(byte[] body, String[] channels) {
+    }
+}
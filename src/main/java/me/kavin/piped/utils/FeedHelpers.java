@@ -1,28 +1,68 @@
 package me.kavin.piped.utils;
 
-import com.rometools.rome.feed.synd.SyndFeed;
-import com.rometools.rome.feed.synd.SyndFeedImpl;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import jakarta.persistence.criteria.CriteriaBuilder;
 import jakarta.persistence.criteria.CriteriaQuery;
 import jakarta.persistence.criteria.JoinType;
+import jakarta.persistence.criteria.Root;
 import me.kavin.piped.consts.Constants;
+import me.kavin.piped.utils.obj.StreamItem;
 import me.kavin.piped.utils.obj.SubscriptionChannel;
 import me.kavin.piped.utils.obj.db.Channel;
 import me.kavin.piped.utils.obj.db.User;
 import me.kavin.piped.utils.obj.db.Video;
+import me.kavin.piped.utils.resp.InvalidRequestResponse;
+import org.apache.commons.lang3.StringUtils;
 import org.hibernate.StatelessSession;
 
 import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.Date;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
 
+import static me.kavin.piped.consts.Constants.mapper;
 import static me.kavin.piped.utils.URLUtils.rewriteURL;
 
 public class FeedHelpers {
+
+    // videos leaving the retention only change the ETag of a feed this often
+    private static final long VERSION_CUTOFF_STEP = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * The position of the last video of a feed page, as the feed is ordered by upload time and then by id.
+     */
+    public record FeedCursor(long uploaded, String id) {
+    }
+
     public static Stream<Video> generateAuthenticatedFeed(StatelessSession s, long userId, int maxResults) {
+        return generateAuthenticatedFeed(s, userId, null, maxResults);
+    }
+
+    public static Stream<Video> generateAuthenticatedFeed(StatelessSession s, long userId, @Nullable FeedCursor after, int maxResults) {
+        return generateAuthenticatedFeed(s, userId, after, 0, maxResults);
+    }
+
+    /**
+     * @param since only include videos inserted after this time, 0 for all of them
+     */
+    public static Stream<Video> generateAuthenticatedFeed(StatelessSession s, long userId, @Nullable FeedCursor after, long since, int maxResults) {
+        if (VideoIndex.isReady())
+            return since > 0 ?
+                    VideoIndex.generateDelta(getSubscribedChannels(s, userId), since, maxResults) :
+                    VideoIndex.generateFeed(getSubscribedChannels(s, userId), after, maxResults);
+
+        if (Constants.FEED_TIMELINES)
+            return TimelineHelper.generateFeed(s, userId, after, since, maxResults);
+
         CriteriaBuilder cb = s.getCriteriaBuilder();
 
         // Get all videos from subscribed channels, with channel info
@@ -35,15 +75,33 @@ public class FeedHelpers {
                 .where(cb.equal(subroot.get("id"), userId));
 
         criteria.select(root)
-                .where(
-                        root.get("channel").get("uploader_id").in(subquery)
-                )
-                .orderBy(cb.desc(root.get("uploaded")));
+                .where(cb.and(
+                        root.get("channel").get("uploader_id").in(subquery),
+                        after(cb, root, after),
+                        since(cb, root, since)
+                ))
+                .orderBy(cb.desc(root.get("uploaded")), cb.desc(root.get("id")));
 
         return s.createQuery(criteria).setTimeout(20).setMaxResults(maxResults).stream();
     }
 
     public static Stream<Video> generateUnauthenticatedFeed(StatelessSession s, Set<String> channelIds, int maxResults) {
+        return generateUnauthenticatedFeed(s, channelIds, null, maxResults);
+    }
+
+    public static Stream<Video> generateUnauthenticatedFeed(StatelessSession s, Set<String> channelIds, @Nullable FeedCursor after, int maxResults) {
+        return generateUnauthenticatedFeed(s, channelIds, after, 0, maxResults);
+    }
+
+    /**
+     * @param since only include videos inserted after this time, 0 for all of them
+     */
+    public static Stream<Video> generateUnauthenticatedFeed(StatelessSession s, Set<String> channelIds, @Nullable FeedCursor after, long since, int maxResults) {
+        if (VideoIndex.isReady())
+            return since > 0 ?
+                    VideoIndex.generateDelta(channelIds, since, maxResults) :
+                    VideoIndex.generateFeed(channelIds, after, maxResults);
+
         CriteriaBuilder cb = s.getCriteriaBuilder();
 
         // Get all videos from subscribed channels, with channel info
@@ -53,9 +111,11 @@ public class FeedHelpers {
 
         criteria.select(root)
                 .where(cb.and(
-                        root.get("channel").get("id").in(channelIds)
+                        root.get("channel").get("id").in(channelIds),
+                        after(cb, root, after),
+                        since(cb, root, since)
                 ))
-                .orderBy(cb.desc(root.get("uploaded")));
+                .orderBy(cb.desc(root.get("uploaded")), cb.desc(root.get("id")));
 
         return s.createQuery(criteria)
                 .setTimeout(20)
@@ -63,21 +123,169 @@ public class FeedHelpers {
                 .stream();
     }
 
-    public static SyndFeed createRssFeed(@Nullable String username) {
-        SyndFeed feed = new SyndFeedImpl();
-        feed.setFeedType("atom_1.0");
-        feed.setTitle("Piped - Feed");
+    /**
+     * Creates a weak ETag for a feed without generating it. It changes whenever a video of one of the channels is
+     * added or removed, but not when only the views or title of a video change. It only depends on the videos in the
+     * database, so every node creates the same one.
+     *
+     * @param variant anything else the response depends on, like the page or filter
+     */
+    public static String createETag(StatelessSession s, Collection<String> channelIds, String variant) {
+        final String[] channels = channelIds.toArray(String[]::new);
+        Arrays.sort(channels);
+
+        // rounded up, so that every node and the index agree on which videos are still within the retention
+        final long cutoff = Math.ceilDiv(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(Constants.FEED_RETENTION),
+                VERSION_CUTOFF_STEP) * VERSION_CUTOFF_STEP;
 
-        if (username == null) {
-            feed.setDescription("Piped's RSS unauthenticated subscription feed.");
+        final String version;
+
+        if (VideoIndex.isReady()) {
+            version = VideoIndex.getVersion(channels, cutoff);
+        } else if (channels.length == 0) {
+            version = "";
         } else {
-            feed.setDescription(String.format("Piped's RSS subscription feed for %s.", username));
+            Object[] row = s.createNativeQuery("SELECT count(*), coalesce(max(uploaded), 0) FROM videos WHERE uploader_id IN (:channels) AND uploaded >= :cutoff", Object[].class)
+                    .setParameter("channels", Arrays.asList(channels))
+                    .setParameter("cutoff", cutoff)
+                    .setTimeout(20)
+                    .getSingleResult();
+            version = row[0] + ":" + row[1];
+        }
+
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(variant.getBytes(StandardCharsets.UTF_8));
+            for (String channel : channels) {
+                md.update((byte) ',');
+                md.update(channel.getBytes(StandardCharsets.UTF_8));
+            }
+            md.update((byte) '\n');
+            md.update(version.getBytes(StandardCharsets.UTF_8));
+            return "W/\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(md.digest(), 16)) + '"';
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String createAuthenticatedETag(StatelessSession s, long userId, String variant) {
+        return createETag(s, getSubscribedChannels(s, userId), variant);
+    }
+
+    /**
+     * @param ifNoneMatch the If-None-Match header of the request
+     */
+    public static boolean matchesETag(@Nullable String ifNoneMatch, String etag) {
+        if (StringUtils.isBlank(ifNoneMatch))
+            return false;
+
+        final String opaque = StringUtils.removeStart(etag, "W/");
+
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || StringUtils.removeStart(candidate, "W/").equals(opaque))
+                return true;
         }
 
-        feed.setUri(Constants.FRONTEND_URL + "/feed");
-        feed.setPublishedDate(new Date());
+        return false;
+    }
+
+    public static List<String> getSubscribedChannels(StatelessSession s, long userId) {
+        return s.createNativeQuery("SELECT channel FROM users_subscribed WHERE subscriber = :user", String.class)
+                .setParameter("user", userId)
+                .getResultList();
+    }
+
+    private static jakarta.persistence.criteria.Predicate after(CriteriaBuilder cb, Root<Video> root, @Nullable FeedCursor after) {
+        if (after == null)
+            return cb.conjunction();
+
+        return cb.or(
+                cb.lessThan(root.get("uploaded"), after.uploaded()),
+                cb.and(
+                        cb.equal(root.get("uploaded"), after.uploaded()),
+                        cb.lessThan(root.get("id"), after.id())
+                )
+        );
+    }
+
+    private static jakarta.persistence.criteria.Predicate since(CriteriaBuilder cb, Root<Video> root, long since) {
+        if (since <= 0)
+            return cb.conjunction();
+
+        return cb.greaterThan(root.get("inserted"), since);
+    }
+
+    @Nullable
+    public static FeedCursor parseCursor(@Nullable String nextpage) {
+        if (StringUtils.isBlank(nextpage))
+            return null;
+
+        try {
+            var cursor = mapper.readValue(nextpage, FeedCursor.class);
+            if (cursor != null && cursor.id() != null)
+                return cursor;
+        } catch (JsonProcessingException ignored) {
+        }
+
+        ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("nextpage is not a valid feed cursor"));
+        return null;
+    }
+
+    /**
+     * @param since the since parameter of a delta feed request, the watermark of the last delta the client got
+     */
+    @Nullable
+    public static Long parseWatermark(@Nullable String since) {
+        if (StringUtils.isBlank(since))
+            return null;
+
+        try {
+            long watermark = Long.parseLong(since);
+            if (watermark >= 0)
+                return watermark;
+        } catch (NumberFormatException ignored) {
+        }
+
+        ExceptionHandler.throwErrorResponse(new InvalidRequestResponse("since is not a valid timestamp"));
+        return null;
+    }
+
+    /**
+     * Whether a client with the watermark has to fetch the whole feed again, as the videos it has may have been
+     * removed after the feed retention since, which a delta can't tell it about.
+     */
+    public static boolean requiresResync(long since) {
+        return since < System.currentTimeMillis() - TimeUnit.DAYS.toMillis(Constants.FEED_RETENTION);
+    }
+
+    public static String createCursor(Video last) throws JsonProcessingException {
+        return mapper.writeValueAsString(new FeedCursor(last.getUploaded(), last.getId()));
+    }
+
+    /**
+     * @param channel the channel of a feed for a single channel, to show its name and avatar
+     */
+    public static FeedWriter createRssFeed(@Nullable String username, @Nullable Channel channel) {
+        String description = username == null ?
+                "Piped's RSS unauthenticated subscription feed." :
+                String.format("Piped's RSS subscription feed for %s.", username);
+
+        if (channel == null)
+            return FeedWriter.atom("Piped - Feed", description, Constants.FRONTEND_URL + "/feed", null,
+                    System.currentTimeMillis());
+
+        return FeedWriter.atom("Piped - " + channel.getUploader(), description, Constants.FRONTEND_URL + "/feed",
+                rewriteURL(channel.getUploaderAvatar()), System.currentTimeMillis());
+    }
+
+    public static StreamItem toStreamItem(Video video) {
+        var channel = video.getChannel();
 
-        return feed;
+        return new StreamItem("/watch?v=" + video.getId(), video.getTitle(),
+                rewriteURL(video.getThumbnail()), channel.getUploader(), "/channel/" + channel.getUploaderId(),
+                rewriteURL(channel.getUploaderAvatar()), null, null, video.getDuration(), video.getViews(),
+                video.getUploaded(), channel.isVerified(), video.isShort());
     }
 
     public static Predicate<Video> createFeedFilter(@Nullable String filter) {
@@ -0,0 +1,173 @@
+package me.kavin.piped.utils;
+
+import io.activej.bytebuf.ByteBuf;
+import io.activej.bytebuf.ByteBufPool;
+import io.activej.csp.AbstractChannelSupplier;
+import io.activej.csp.ChannelSupplier;
+import io.activej.eventloop.schedule.ScheduledRunnable;
+import io.activej.promise.Promise;
+import io.activej.promise.SettablePromise;
+import me.kavin.piped.consts.Constants;
+import me.kavin.piped.utils.obj.db.Video;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static me.kavin.piped.consts.Constants.mapper;
+
+/**
+ * Pushes new videos to the clients listening on /feed/stream as Server-Sent Events, instead of them polling the feed.
+ * <p>
+ * Every connection is registered under each channel it listens to, so a new video only reaches the connections of its
+ * channel. A connection that can't keep up keeps the newest {@link #BUFFER_SIZE} events and drops older ones.
+ * <p>
+ * With {@link Constants#FEED_INDEX} enabled, videos are published by the {@link VideoIndex} as it syncs, so they
+ * reach every node within a minute or so. Otherwise, only the videos inserted by this node are published, and
+ * deployments with several nodes should leave clients to poll the feed delta every few minutes instead.
+ */
+public class FeedStreams {
+
+    private static final int BUFFER_SIZE = 64;
+
+    // proxies tend to close connections that have been idle for a minute
+    private static final long HEARTBEAT_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    private static final byte[] CONNECTED = "retry: 10000\n\n".getBytes(UTF_8);
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(UTF_8);
+
+    private static final ConcurrentHashMap<String, Set<Listener>> listeners = new ConcurrentHashMap<>();
+
+    /**
+     * Opens a stream of the new videos of the channels, it has to be called on the eventloop of the connection.
+     */
+    public static ChannelSupplier<ByteBuf> listen(Collection<String> channelIds) {
+        Listener listener = new Listener(channelIds.toArray(String[]::new));
+
+        // added within the mapping, so that the set can't be dropped by an unregister in between
+        for (String channelId : listener.channelIds)
+            listeners.compute(channelId, (k, channelListeners) -> {
+                if (channelListeners == null)
+                    channelListeners = ConcurrentHashMap.newKeySet();
+                channelListeners.add(listener);
+                return channelListeners;
+            });
+
+        return listener;
+    }
+
+    /**
+     * Sends a new video to every connection listening to its channel.
+     */
+    public static void publish(Video video) {
+        Set<Listener> channelListeners = listeners.get(video.getChannel().getUploaderId());
+
+        if (channelListeners == null || channelListeners.isEmpty())
+            return;
+
+        final byte[] event;
+        try {
+            event = ("event: video\ndata: " + mapper.writeValueAsString(FeedHelpers.toStreamItem(video)) + "\n\n")
+                    .getBytes(UTF_8);
+        } catch (Exception e) {
+            ExceptionHandler.handle(e);
+            return;
+        }
+
+        for (Listener listener : channelListeners)
+            listener.push(event);
+    }
+
+    private static void unregister(Listener listener) {
+        for (String channelId : listener.channelIds)
+            listeners.computeIfPresent(channelId, (k, channelListeners) -> {
+                channelListeners.remove(listener);
+                return channelListeners.isEmpty() ? null : channelListeners;
+            });
+    }
+
+    /**
+     * The events of a single connection, only touched on the eventloop that serves it.
+     */
+    private static class Listener extends AbstractChannelSupplier<ByteBuf> {
+
+        private final String[] channelIds;
+        private final ArrayDeque<byte[]> buffer = new ArrayDeque<>(BUFFER_SIZE);
+
+        private SettablePromise<ByteBuf> pending;
+        private ScheduledRunnable heartbeat;
+
+        private Listener(String[] channelIds) {
+            this.channelIds = channelIds;
+            buffer.add(CONNECTED);
+            scheduleHeartbeat();
+        }
+
+        /**
+         * Can be called from any thread.
+         */
+        private void push(byte[] event) {
+            eventloop.execute(() -> offer(event));
+        }
+
+        private void offer(byte[] event) {
+            if (isClosed())
+                return;
+
+            if (pending != null) {
+                SettablePromise<ByteBuf> promise = pending;
+                pending = null;
+                promise.set(toByteBuf(event));
+                return;
+            }
+
+            if (buffer.size() == BUFFER_SIZE)
+                buffer.poll();
+            buffer.add(event);
+        }
+
+        private void scheduleHeartbeat() {
+            heartbeat = eventloop.delayBackground(HEARTBEAT_INTERVAL, () -> {
+                if (isClosed())
+                    return;
+                if (buffer.isEmpty())
+                    offer(HEARTBEAT);
+                scheduleHeartbeat();
+            });
+        }
+
+        @Override
+        protected Promise<ByteBuf> doGet() {
+            byte[] event = buffer.poll();
+            if (event != null)
+                return Promise.of(toByteBuf(event));
+
+            pending = new SettablePromise<>();
+            return pending;
+        }
+
+        @Override
+        protected void onClosed(Exception e) {
+            heartbeat.cancel();
+            unregister(this);
+            buffer.clear();
+
+            if (pending != null) {
+                pending.trySetException(e);
+                pending = null;
+            }
+        }
+
+        /**
+         * Copies the event into a buffer of its own, the pool recycles the array of a buffer once it is written.
+         */
+        private static ByteBuf toByteBuf(byte[] event) {
+            ByteBuf buf = ByteBufPool.allocate(event.length);
+            buf.put(event);
+            return buf;
+        }
+    }
+}
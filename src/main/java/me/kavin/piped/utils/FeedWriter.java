@@ -0,0 +1,323 @@
+package me.kavin.piped.utils;
+
+import me.kavin.piped.consts.Constants;
+import me.kavin.piped.utils.obj.db.Channel;
+import me.kavin.piped.utils.obj.db.Video;
+
+import javax.annotation.Nullable;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static me.kavin.piped.utils.URLUtils.rewriteURL;
+
+/**
+ * Writes Atom and RSS 2.0 feeds straight into a UTF-8 buffer, byte for byte as Rome's SyndFeedOutput renders the
+ * same feeds, without building the Rome and JDOM object graphs first.
+ * <p>
+ * That means JDOM's pretty format: two space indentation, CRLF line endings, trimmed text, empty elements written
+ * as {@code <name />} and characters outside the basic multilingual plane written as character references.
+ */
+public class FeedWriter {
+
+    private static final DateTimeFormatter W3C_DATE = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+    private static final DateTimeFormatter RFC822_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final String MEDIA_NAMESPACE = " xmlns:media=\"http://search.yahoo.com/mrss/\"";
+
+    private final boolean atom;
+
+    private byte[] buf = new byte[16384];
+    private int size = 0;
+    private int depth = 0;
+
+    /**
+     * Where the Media RSS namespace goes in the root element, it is only declared once there are entries using it.
+     */
+    private int namespaceOffset = -1;
+
+    private FeedWriter(boolean atom) {
+        this.atom = atom;
+        raw("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n");
+    }
+
+    /**
+     * @param icon the URL of the icon and logo of the feed, if any
+     */
+    public static FeedWriter atom(String title, @Nullable String subtitle, String id, @Nullable String icon, long updated) {
+        FeedWriter writer = new FeedWriter(true);
+
+        writer.start("feed", "xmlns", "http://www.w3.org/2005/Atom", "xmlns:dc", "http://purl.org/dc/elements/1.1/");
+        writer.namespaceOffset = writer.size - ">\r\n".length();
+        writer.text("title", title);
+        writer.text("subtitle", subtitle == null ? "" : subtitle);
+        writer.text("id", id);
+        if (icon != null) {
+            writer.text("icon", icon);
+            writer.text("logo", icon);
+        }
+        writer.text("updated", formatW3C(updated));
+        writer.text("dc:date", formatW3C(updated));
+
+        return writer;
+    }
+
+    public static FeedWriter rss(String title, String link, String description, @Nullable String author, long published) {
+        FeedWriter writer = new FeedWriter(false);
+
+        writer.start("rss", "xmlns:dc", "http://purl.org/dc/elements/1.1/", "version", "2.0");
+        writer.start("channel");
+        writer.optionalText("title", title);
+        writer.optionalText("link", link);
+        writer.optionalText("description", description);
+        writer.text("pubDate", RFC822_DATE.format(Instant.ofEpochMilli(published)));
+        writer.optionalText("dc:creator", author);
+        writer.text("dc:date", formatW3C(published));
+
+        return writer;
+    }
+
+    /**
+     * Writes an Atom entry for a video, along with its Media RSS content for embedding.
+     */
+    public FeedWriter entry(Video video, Channel channel) {
+        final String url = Constants.FRONTEND_URL + "/watch?v=" + video.getId();
+        final String published = formatW3C(video.getUploaded());
+
+        if (namespaceOffset >= 0) {
+            ensureCapacity(MEDIA_NAMESPACE.length());
+            System.arraycopy(buf, namespaceOffset, buf, namespaceOffset + MEDIA_NAMESPACE.length(), size - namespaceOffset);
+            for (int i = 0; i < MEDIA_NAMESPACE.length(); i++)
+                buf[namespaceOffset + i] = (byte) MEDIA_NAMESPACE.charAt(i);
+            size += MEDIA_NAMESPACE.length();
+            namespaceOffset = -1;
+        }
+
+        start("entry");
+        text("title", video.getTitle() == null ? "" : video.getTitle());
+        empty("link", "rel", "alternate", "href", url);
+        start("author");
+        optionalText("name", channel.getUploader());
+        text("uri", Constants.FRONTEND_URL + "/channel/" + channel.getUploaderId());
+        end("author");
+        text("id", url);
+        text("updated", published);
+        text("published", published);
+
+        start("content", "type", "xhtml");
+        start("div", "xmlns", "http://www.w3.org/1999/xhtml");
+        start("a", "href", url);
+        empty("img", "src", String.valueOf(rewriteURL(video.getThumbnail())));
+        end("a");
+        end("div");
+        end("content");
+
+        text("dc:date", published);
+
+        // see https://www.rssboard.org/media-rss#media-content
+        start("media:content", "duration", Long.toString(video.getDuration()));
+        empty("media:player", "url", Constants.FRONTEND_URL + "/embed/" + video.getId());
+        optionalText("media:title", video.getTitle());
+        empty("media:thumbnail", "url", video.getThumbnail());
+        end("media:content");
+
+        end("entry");
+
+        return this;
+    }
+
+    /**
+     * Writes an RSS item, the uri is used as its guid.
+     */
+    public FeedWriter item(@Nullable String title, @Nullable String link, @Nullable String uri, @Nullable String author) {
+        if (title == null && link == null && uri == null && author == null) {
+            empty("item");
+            return this;
+        }
+
+        start("item");
+        optionalText("title", title);
+        optionalText("link", link);
+        if (uri != null)
+            text("guid", uri, "isPermaLink", "false");
+        else
+            optionalText("guid", link);
+        optionalText("dc:creator", author);
+        end("item");
+
+        return this;
+    }
+
+    public byte[] finish() {
+        if (atom) {
+            end("feed");
+        } else {
+            end("channel");
+            end("rss");
+        }
+        return Arrays.copyOf(buf, size);
+    }
+
+    private static String formatW3C(long time) {
+        return W3C_DATE.format(Instant.ofEpochMilli(time));
+    }
+
+    private void start(String name, String... attributes) {
+        indent();
+        raw('<');
+        raw(name);
+        attributes(attributes);
+        raw(">\r\n");
+        depth++;
+    }
+
+    private void end(String name) {
+        depth--;
+        indent();
+        raw("</");
+        raw(name);
+        raw(">\r\n");
+    }
+
+    private void empty(String name, String... attributes) {
+        indent();
+        raw('<');
+        raw(name);
+        attributes(attributes);
+        raw(" />\r\n");
+    }
+
+    private void optionalText(String name, @Nullable String text) {
+        if (text != null)
+            text(name, text);
+    }
+
+    private void text(String name, String text, String... attributes) {
+        int start = 0, end = text.length();
+        while (start < end && isWhitespace(text.charAt(start)))
+            start++;
+        while (end > start && isWhitespace(text.charAt(end - 1)))
+            end--;
+
+        if (start == end) {
+            empty(name, attributes);
+            return;
+        }
+
+        indent();
+        raw('<');
+        raw(name);
+        attributes(attributes);
+        raw('>');
+        escape(text, start, end, false);
+        raw("</");
+        raw(name);
+        raw(">\r\n");
+    }
+
+    private void attributes(String[] attributes) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            raw(' ');
+            raw(attributes[i]);
+            raw("=\"");
+            escape(attributes[i + 1], 0, attributes[i + 1].length(), true);
+            raw('"');
+        }
+    }
+
+    private void indent() {
+        ensureCapacity(depth * 2);
+        for (int i = 0; i < depth * 2; i++)
+            buf[size++] = ' ';
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    /**
+     * Escapes like JDOM's output, characters that aren't allowed in XML at all are left out.
+     */
+    private void escape(String s, int start, int end, boolean attribute) {
+        ensureCapacity((end - start) * 3);
+
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+
+            switch (c) {
+                case '&' -> raw("&amp;");
+                case '<' -> raw("&lt;");
+                case '>' -> raw("&gt;");
+                case '\r' -> raw("&#xD;");
+                case '"' -> {
+                    if (attribute) raw("&quot;");
+                    else raw(c);
+                }
+                case '\t' -> {
+                    if (attribute) raw("&#x9;");
+                    else raw(c);
+                }
+                case '\n' -> {
+                    if (attribute) raw("&#xA;");
+                    else raw("\r\n");
+                }
+                default -> {
+                    if (c >= 0x20 && c < 0x80) {
+                        raw(c);
+                    } else if (c < 0x20) {
+                        // not a legal XML character
+                    } else if (Character.isHighSurrogate(c)) {
+                        if (i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1)))
+                            characterReference(Character.toCodePoint(c, s.charAt(++i)));
+                    } else if (Character.isLowSurrogate(c) || c == 0xfffe || c == 0xffff) {
+                        // not a legal XML character
+                    } else if (c < 0x800) {
+                        ensureCapacity(2);
+                        buf[size++] = (byte) (0xc0 | (c >> 6));
+                        buf[size++] = (byte) (0x80 | (c & 0x3f));
+                    } else {
+                        ensureCapacity(3);
+                        buf[size++] = (byte) (0xe0 | (c >> 12));
+                        buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                        buf[size++] = (byte) (0x80 | (c & 0x3f));
+                    }
+                }
+            }
+        }
+    }
+
+    private void characterReference(int codePoint) {
+        raw("&#x");
+        ensureCapacity(8);
+        int shift = 28;
+        while (shift > 0 && (codePoint >>> shift & 0xf) == 0)
+            shift -= 4;
+        for (; shift >= 0; shift -= 4)
+            buf[size++] = HEX[codePoint >>> shift & 0xf];
+        raw(';');
+    }
+
+    /**
+     * Appends ASCII text as is.
+     */
+    private void raw(String s) {
+        ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++)
+            buf[size++] = (byte) s.charAt(i);
+    }
+
+    private void raw(char c) {
+        ensureCapacity(1);
+        buf[size++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (size + extra > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+    }
+}
@@ -1,28 +1,134 @@
 package me.kavin.piped.utils;
 
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import me.kavin.piped.consts.Constants;
+import me.kavin.piped.utils.obj.db.LbryMapping;
 import org.apache.commons.lang3.StringUtils;
+import org.hibernate.StatelessSession;
 import rocks.kavin.reqwest4j.ReqwestUtils;
 import rocks.kavin.reqwest4j.Response;
 
 import java.net.URI;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static me.kavin.piped.consts.Constants.mapper;
 import static me.kavin.piped.utils.URLUtils.silentEncode;
 
 public class LbryHelper {
 
+    // LBRY mirrors are created some time after the upload, so don't trust a missing mapping for long
+    private static final long MAPPED_REFRESH = TimeUnit.DAYS.toMillis(30);
+    private static final long UNMAPPED_REFRESH = TimeUnit.DAYS.toMillis(1);
+
+    private static final int RESOLVE_BATCH_SIZE = 50;
+
+    private static final Set<String> pendingIds = ConcurrentHashMap.newKeySet();
+
     public static String getLBRYId(String videoId) throws Exception {
 
         if (Constants.DISABLE_LBRY)
             return null;
 
-        return RequestUtils.sendGetJson("https://api.lbry.com/yt/resolve?video_ids=" + silentEncode(videoId))
-                .thenApplyAsync(json -> json.at("/data/videos")
-                        .path(videoId)
-                        .asText(null)
-                ).get();
+        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+            LbryMapping mapping = s.get(LbryMapping.class, videoId);
+
+            if (mapping != null && !isStale(mapping))
+                return mapping.getLbryId();
+        }
+
+        return resolveLBRYIds(List.of(videoId)).get(videoId);
+    }
+
+    /**
+     * Queues a video to have its LBRY ID resolved in the background, with other videos in the same batch.
+     */
+    public static void queueLBRYId(String videoId) {
+        if (!Constants.DISABLE_LBRY)
+            pendingIds.add(videoId);
+    }
+
+    public static void resolveQueuedLBRYIds() {
+
+        List<String> batch = new ObjectArrayList<>(RESOLVE_BATCH_SIZE);
+
+        for (String videoId : pendingIds) {
+            pendingIds.remove(videoId);
+            batch.add(videoId);
+
+            if (batch.size() == RESOLVE_BATCH_SIZE) {
+                resolveSilently(batch);
+                batch.clear();
+            }
+        }
+
+        if (!batch.isEmpty())
+            resolveSilently(batch);
+    }
+
+    private static void resolveSilently(List<String> videoIds) {
+        try {
+            resolveLBRYIds(videoIds);
+        } catch (Exception e) {
+            ExceptionHandler.handle(e);
+        }
+    }
+
+    /**
+     * Resolves the LBRY IDs of the videos in a single request, and stores them along with the videos that have none.
+     */
+    private static Map<String, String> resolveLBRYIds(List<String> videoIds) throws Exception {
+
+        var videos = RequestUtils.await(RequestUtils.sendGetJson("https://api.lbry.com/yt/resolve?video_ids=" + silentEncode(String.join(",", videoIds))))
+                .at("/data/videos");
+
+        Map<String, String> lbryIds = new Object2ObjectOpenHashMap<>();
+
+        for (String videoId : videoIds)
+            lbryIds.put(videoId, videos.path(videoId).asText(null));
+
+        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+            var tr = s.beginTransaction();
+            try {
+                long now = System.currentTimeMillis();
+                for (var entry : lbryIds.entrySet())
+                    s.createNativeMutationQuery("INSERT INTO lbry_mappings (id, lbry_id, updated) VALUES (?, ?, ?) " +
+                                    "ON CONFLICT (id) DO UPDATE SET lbry_id = excluded.lbry_id, updated = excluded.updated")
+                            .setParameter(1, entry.getKey())
+                            .setParameter(2, entry.getValue())
+                            .setParameter(3, now)
+                            .executeUpdate();
+                tr.commit();
+            } catch (Exception e) {
+                tr.rollback();
+                ExceptionHandler.handle(e);
+            }
+        }
+
+        return lbryIds;
+    }
+
+    private static boolean isStale(LbryMapping mapping) {
+        long refresh = mapping.getLbryId() == null ? UNMAPPED_REFRESH : MAPPED_REFRESH;
+        return System.currentTimeMillis() - mapping.getUpdated() > refresh;
+    }
+
+    public static void cleanupLBRYIds() {
+        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+
+            var cb = s.getCriteriaBuilder();
+            var cd = cb.createCriteriaDelete(LbryMapping.class);
+            var root = cd.from(LbryMapping.class);
+            cd.where(cb.lessThan(root.get("updated"), System.currentTimeMillis() - MAPPED_REFRESH));
+
+            var tr = s.beginTransaction();
+            s.createMutationQuery(cd).executeUpdate();
+            tr.commit();
+        }
     }
 
     public static String getLBRYStreamURL(String lbryId)
@@ -31,7 +137,7 @@ public class LbryHelper {
         if (StringUtils.isEmpty(lbryId))
             return null;
 
-        var resp = ReqwestUtils.fetch("https://api.na-backend.odysee.com/api/v1/proxy?m=get", "POST",
+        var resp = RequestUtils.await(ReqwestUtils.fetch("https://api.na-backend.odysee.com/api/v1/proxy?m=get", "POST",
                 mapper.writeValueAsBytes(
                         mapper.createObjectNode()
                                 .put("id", System.currentTimeMillis())
@@ -42,7 +148,7 @@ public class LbryHelper {
                                                 .put("uri", "lbry://" + lbryId)
                                                 .put("save_file", true)
                                 )
-                ), Map.of("Content-Type", "application/json")).get();
+                ), Map.of("Content-Type", "application/json")));
         if (resp.status() / 100 == 2) {
             return mapper.readTree(resp.body())
                     .at("/result/streaming_url")
@@ -61,12 +167,11 @@ public class LbryHelper {
         // LBRY provides non UTF-8 characters in the URL, which causes issues
         streamUrl = new URI(streamUrl).toASCIIString();
 
-        final String lastLocation = ReqwestUtils.fetch(streamUrl, "HEAD", null, Map.of(
+        final String lastLocation = RequestUtils.await(ReqwestUtils.fetch(streamUrl, "HEAD", null, Map.of(
                         "Origin", "https://odysee.com",
                         "Referer", "https://odysee.com/"
                 ))
-                .thenApply(Response::finalUrl)
-                .get();
+                .thenApply(Response::finalUrl));
 
         return streamUrl.equals(lastLocation) ? null : lastLocation;
     }
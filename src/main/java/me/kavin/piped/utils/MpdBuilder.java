@@ -1,5 +1,148 @@
 package me.kavin.piped.utils;
 
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import me.kavin.piped.utils.obj.PipedStream;
+import me.kavin.piped.utils.obj.Streams;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import static org.apache.commons.text.StringEscapeUtils.escapeXml10;
+
+/**
+ * Builds a static on-demand DASH manifest from the byte ranges of the extracted audio and video-only streams.
+ */
 public class MpdBuilder {
 
+    private final StringBuilder sb = new StringBuilder(8192);
+
+    private int adaptationSetId = 0;
+    private int representationId = 0;
+
+    private MpdBuilder() {
+    }
+
+    /**
+     * @return the manifest, or null if none of the streams can be addressed by byte ranges
+     */
+    public static String build(Streams streams) {
+
+        if (streams.livestream)
+            return null;
+
+        final List<PipedStream> audioStreams = streams.audioStreams.stream()
+                .filter(MpdBuilder::hasRanges)
+                .toList();
+
+        final List<PipedStream> videoStreams = streams.videoStreams.stream()
+                .filter(stream -> stream.videoOnly)
+                .filter(MpdBuilder::hasRanges)
+                .toList();
+
+        if (audioStreams.isEmpty() && videoStreams.isEmpty())
+            return null;
+
+        return new MpdBuilder().render(streams.duration, audioStreams, videoStreams);
+    }
+
+    private static boolean hasRanges(PipedStream stream) {
+        return stream.url != null && stream.initEnd > 0 && stream.indexEnd > 0;
+    }
+
+    private String render(long duration, List<PipedStream> audioStreams, List<PipedStream> videoStreams) {
+
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" profiles=\"urn:mpeg:dash:profile:full:2011\"")
+                .append(" type=\"static\" minBufferTime=\"PT1.5S\" mediaPresentationDuration=\"PT")
+                .append(duration).append("S\">\n");
+        sb.append("<Period>\n");
+
+        // one adaptation set per container and audio track, so that players can switch between dubs
+        Map<String, List<PipedStream>> audioSets = new Object2ObjectLinkedOpenHashMap<>();
+        for (PipedStream stream : audioStreams)
+            audioSets.computeIfAbsent(stream.mimeType + '\0' + Objects.toString(stream.audioTrackId, ""),
+                    key -> new ObjectArrayList<>()).add(stream);
+
+        Map<String, List<PipedStream>> videoSets = new Object2ObjectLinkedOpenHashMap<>();
+        for (PipedStream stream : videoStreams)
+            videoSets.computeIfAbsent(stream.mimeType, key -> new ObjectArrayList<>()).add(stream);
+
+        audioSets.values().forEach(this::renderAudioSet);
+        videoSets.values().forEach(this::renderVideoSet);
+
+        sb.append("</Period>\n");
+        sb.append("</MPD>\n");
+
+        return sb.toString();
+    }
+
+    private void renderAudioSet(List<PipedStream> streams) {
+
+        PipedStream first = streams.getFirst();
+
+        sb.append("<AdaptationSet id=\"").append(adaptationSetId++).append('"');
+        attribute("mimeType", first.mimeType);
+        attribute("lang", first.audioTrackLocale);
+        sb.append(" startWithSAP=\"1\" subsegmentAlignment=\"true\">\n");
+
+        sb.append("<Role schemeIdUri=\"urn:mpeg:dash:role:2011\" value=\"").append(getRole(first.audioTrackType)).append("\"/>\n");
+
+        if (first.audioTrackName != null)
+            sb.append("<Label>").append(escapeXml10(first.audioTrackName)).append("</Label>\n");
+
+        for (PipedStream stream : streams) {
+            sb.append("<Representation id=\"").append(representationId++).append('"');
+            attribute("codecs", stream.codec);
+            sb.append(" bandwidth=\"").append(stream.bitrate).append("\">\n");
+            renderSegmentBase(stream);
+            sb.append("</Representation>\n");
+        }
+
+        sb.append("</AdaptationSet>\n");
+    }
+
+    private void renderVideoSet(List<PipedStream> streams) {
+
+        sb.append("<AdaptationSet id=\"").append(adaptationSetId++).append('"');
+        attribute("mimeType", streams.getFirst().mimeType);
+        sb.append(" startWithSAP=\"1\" subsegmentAlignment=\"true\" scanType=\"progressive\">\n");
+
+        for (PipedStream stream : streams) {
+            sb.append("<Representation id=\"").append(representationId++).append('"');
+            attribute("codecs", stream.codec);
+            sb.append(" bandwidth=\"").append(stream.bitrate).append('"');
+            if (stream.width > 0 && stream.height > 0)
+                sb.append(" width=\"").append(stream.width).append("\" height=\"").append(stream.height).append('"');
+            if (stream.fps > 0)
+                sb.append(" frameRate=\"").append(stream.fps).append('"');
+            sb.append(">\n");
+            renderSegmentBase(stream);
+            sb.append("</Representation>\n");
+        }
+
+        sb.append("</AdaptationSet>\n");
+    }
+
+    private void renderSegmentBase(PipedStream stream) {
+        sb.append("<BaseURL>").append(escapeXml10(stream.url)).append("</BaseURL>\n");
+        sb.append("<SegmentBase indexRange=\"").append(stream.indexStart).append('-').append(stream.indexEnd).append("\">\n");
+        sb.append("<Initialization range=\"").append(stream.initStart).append('-').append(stream.initEnd).append("\"/>\n");
+        sb.append("</SegmentBase>\n");
+    }
+
+    private void attribute(String name, String value) {
+        if (value != null)
+            sb.append(' ').append(name).append("=\"").append(escapeXml10(value)).append('"');
+    }
+
+    private static String getRole(String audioTrackType) {
+        return switch (audioTrackType) {
+            case "DUBBED" -> "dub";
+            case "DESCRIPTIVE" -> "description";
+            case "SECONDARY" -> "alternate";
+            case null, default -> "main";
+        };
+    }
 }
@@ -10,6 +10,7 @@ import rocks.kavin.reqwest4j.Response;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import static me.kavin.piped.consts.Constants.mapper;
 
@@ -56,4 +57,18 @@ public class RequestUtils {
             }
         });
     }
+
+    /**
+     * Waits for a request made with reqwest4j, which can't abort a request once it is sent. When the waiting thread is
+     * interrupted, like when the work it does is cancelled, the future is cancelled too, so that the response is
+     * dropped as soon as it arrives instead of still being parsed.
+     */
+    public static <T> T await(CompletableFuture<T> future) throws InterruptedException, ExecutionException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
 }
@@ -0,0 +1,154 @@
+package me.kavin.piped.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.schabi.newpipe.extractor.exceptions.ContentNotAvailableException;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A response cache which keeps serving an expired entry for a while after it expires:
+ * <ul>
+ *     <li>within the stale-while-revalidate window, the expired entry is returned immediately and refreshed once in the background</li>
+ *     <li>within the stale-if-error window, the expired entry is returned if refreshing it fails upstream</li>
+ * </ul>
+ * Concurrent loads of the same key are coalesced.
+ */
+public class RevalidatingCache {
+
+    private final Cache<String, Entry> cache;
+    private final SingleFlight<String, byte[]> flight = new SingleFlight<>();
+    private final Set<String> revalidating = ConcurrentHashMap.newKeySet();
+
+    private final boolean enabled;
+    private final long staleWhileRevalidate;
+    private final long staleIfError;
+
+    /**
+     * @param maxSize              maximum size of the cached bodies in megabytes, or 0 to disable caching
+     * @param staleWhileRevalidate how long after expiry an entry is served while it is refreshed, in milliseconds
+     * @param staleIfError         how long after expiry an entry is served when refreshing it fails, in milliseconds
+     */
+    public RevalidatingCache(long maxSize, long staleWhileRevalidate, long staleIfError) {
+        this.enabled = maxSize > 0;
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.staleIfError = staleIfError;
+
+        final long staleWindow = Math.max(staleWhileRevalidate, staleIfError);
+
+        cache = Caffeine.newBuilder()
+                .maximumWeight(Math.max(maxSize, 0) * 1024 * 1024)
+                .weigher((String key, Entry entry) -> entry.body().length)
+                .expireAfter(new Expiry<String, Entry>() {
+                    @Override
+                    public long expireAfterCreate(String key, Entry entry, long currentTime) {
+                        return expiresIn(entry, staleWindow);
+                    }
+
+                    // a revalidated entry gets the deadline of its new body
+                    @Override
+                    public long expireAfterUpdate(String key, Entry entry, long currentTime, long currentDuration) {
+                        return expiresIn(entry, staleWindow);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Entry entry, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+    }
+
+    private static long expiresIn(Entry entry, long staleWindow) {
+        return Math.max(0, TimeUnit.MILLISECONDS.toNanos(entry.expiresAt() + staleWindow - System.currentTimeMillis()));
+    }
+
+    /**
+     * @param ttl how long a loaded body stays fresh, in milliseconds
+     */
+    public byte[] get(String key, long ttl, Callable<byte[]> loader) throws Exception {
+        return get(key, () -> new Entry(loader.call(), System.currentTimeMillis() + ttl));
+    }
+
+    public byte[] get(String key, Callable<Entry> loader) throws Exception {
+
+        if (!enabled)
+            return flight.execute(key, () -> loader.call().body());
+
+        final Entry cached = cache.getIfPresent(key);
+        final long now = System.currentTimeMillis();
+
+        if (cached != null) {
+            if (now < cached.expiresAt())
+                return cached.body();
+
+            if (now < cached.expiresAt() + staleWhileRevalidate) {
+                revalidate(key, loader);
+                return cached.body();
+            }
+        }
+
+        try {
+            return flight.execute(key, () -> load(key, loader));
+        } catch (Exception e) {
+            if (cached != null && now < cached.expiresAt() + staleIfError && isUpstreamError(e))
+                return cached.body();
+            throw e;
+        }
+    }
+
+    private void revalidate(String key, Callable<Entry> loader) {
+
+        if (!revalidating.add(key))
+            return;
+
+        Multithreading.runAsync(() -> {
+            try {
+                flight.execute(key, () -> load(key, loader));
+            } catch (Exception e) {
+                ExceptionHandler.handle(e);
+            } finally {
+                revalidating.remove(key);
+            }
+        });
+    }
+
+    private byte[] load(String key, Callable<Entry> loader) throws Exception {
+
+        // another flight might have just refreshed this key
+        Entry cached = cache.getIfPresent(key);
+
+        if (cached != null && System.currentTimeMillis() < cached.expiresAt())
+            return cached.body();
+
+        Entry entry = loader.call();
+
+        if (entry.expiresAt() > System.currentTimeMillis())
+            cache.put(key, entry);
+
+        return entry.body();
+    }
+
+    /**
+     * Errors caused by the request itself or by the content being gone shouldn't be hidden by a stale entry.
+     */
+    private static boolean isUpstreamError(Throwable e) {
+
+        if (e.getCause() != null && (e instanceof ExecutionException || e instanceof CompletionException))
+            e = e.getCause();
+
+        return !(e instanceof ErrorResponse) && !(e instanceof ContentNotAvailableException);
+    }
+
+    /**
+     * @param expiresAt when the body stops being fresh in milliseconds, it isn't cached if that is in the past
+     */
+    public record Entry(byte[] body, long expiresAt) {
+    }
+}
@@ -1,19 +1,71 @@
 package me.kavin.piped.utils;
 
 
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
 import me.kavin.piped.consts.Constants;
+import me.kavin.piped.utils.obj.ContentItem;
+import me.kavin.piped.utils.obj.StreamItem;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 import static me.kavin.piped.utils.RequestUtils.sendGetJson;
 
 public class RydHelper {
+
+    // only the first few videos of a list are likely to be opened
+    private static final int PREFETCH_LIMIT = 20;
+
+    // Ratings barely move once a video is a few hours old, so they are refreshed in the background after an hour.
+    // If the refresh fails the old rating keeps being served until it expires.
+    private static final LoadingCache<String, Double> ratings = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .refreshAfterWrite(1, TimeUnit.HOURS)
+            .expireAfterWrite(1, TimeUnit.DAYS)
+            .executor(Multithreading.getCachedExecutor())
+            .build(RydHelper::fetchDislikeRating);
+
     public static double getDislikeRating(String videoId) throws Exception {
 
         if (Constants.DISABLE_RYD)
             return -1;
 
-        return sendGetJson(Constants.RYD_PROXY_URL + "/votes/" + videoId)
-                .thenApply(tree -> tree.path("rating").asDouble(-1))
-                .get();
+        try {
+            return ratings.get(videoId);
+        } catch (CompletionException e) {
+            return ExceptionUtils.rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Warms the rating cache for the first few stream items, so that opening one of them doesn't wait on RYD.
+     */
+    public static void prefetchDislikeRatings(List<? extends ContentItem> items) {
+
+        if (Constants.DISABLE_RYD)
+            return;
+
+        items.stream()
+                .filter(StreamItem.class::isInstance)
+                .limit(PREFETCH_LIMIT)
+                .map(item -> StringUtils.substringAfter(item.url, "v="))
+                .filter(StringUtils::isNotEmpty)
+                .filter(videoId -> ratings.getIfPresent(videoId) == null)
+                .forEach(videoId -> Multithreading.runAsyncLimited(() -> {
+                    try {
+                        ratings.get(videoId);
+                    } catch (Exception ignored) {
+                        // it will be fetched again when the video is opened
+                    }
+                }));
+    }
 
+    private static double fetchDislikeRating(String videoId) throws Exception {
+        return RequestUtils.await(sendGetJson(Constants.RYD_PROXY_URL + "/votes/" + videoId)
+                .thenApply(tree -> tree.path("rating").asDouble(-1)));
     }
 }
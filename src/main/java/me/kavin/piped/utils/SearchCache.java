@@ -0,0 +1,127 @@
+package me.kavin.piped.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import me.kavin.piped.consts.Constants;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static me.kavin.piped.consts.Constants.mapper;
+
+/**
+ * Caches search results by normalized query, filter and page token.
+ * <p>
+ * A query is only admitted once it has been seen twice within an hour, so that the long tail of one-off queries
+ * doesn't push out the popular ones.
+ */
+public class SearchCache {
+
+    private static final int WARM_SET_SIZE = 1000;
+
+    private static final Cache<Key, byte[]> cache = Caffeine.newBuilder()
+            .maximumWeight(Constants.RESPONSE_CACHE_SIZE * 1024 * 1024)
+            .weigher((Key key, byte[] body) -> body.length)
+            // the same as the max-age of the responses
+            .expireAfter(Expiry.creating((Key key, byte[] body) ->
+                    key.page() == null ? Duration.ofMinutes(10) : Duration.ofHours(1)))
+            .build();
+
+    private static final Cache<Key, Boolean> seen = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(1, TimeUnit.HOURS)
+            .build();
+
+    private static final SingleFlight<Key, byte[]> flight = new SingleFlight<>();
+
+    /**
+     * @param page the token of the page, or null for the first page
+     */
+    public static byte[] get(String query, String filter, String page, Callable<byte[]> loader) throws Exception {
+
+        final Key key = new Key(normalize(query), filter, page);
+
+        if (Constants.RESPONSE_CACHE_SIZE <= 0)
+            return flight.execute(key, loader);
+
+        byte[] cached = cache.getIfPresent(key);
+
+        if (cached != null)
+            return cached;
+
+        return flight.execute(key, () -> {
+            byte[] body = loader.call();
+            if (seen.asMap().putIfAbsent(key, Boolean.TRUE) != null)
+                cache.put(key, body);
+            return body;
+        });
+    }
+
+    /**
+     * Admits the first page of a query without it having to be seen first.
+     */
+    public static void put(String query, String filter, byte[] body) {
+        if (Constants.RESPONSE_CACHE_SIZE > 0)
+            cache.put(new Key(normalize(query), filter, null), body);
+    }
+
+    /**
+     * @return the queries and filters which were the most popular when the warm set was last saved
+     */
+    public static List<WarmQuery> loadWarmSet() {
+
+        if (Constants.SEARCH_WARM_SET_FILE == null)
+            return List.of();
+
+        File file = new File(Constants.SEARCH_WARM_SET_FILE);
+
+        if (!file.exists())
+            return List.of();
+
+        try {
+            return Arrays.asList(mapper.readValue(file, WarmQuery[].class));
+        } catch (IOException e) {
+            ExceptionHandler.handle(e);
+            return List.of();
+        }
+    }
+
+    public static void saveWarmSet() {
+
+        if (Constants.SEARCH_WARM_SET_FILE == null || Constants.RESPONSE_CACHE_SIZE <= 0)
+            return;
+
+        List<WarmQuery> queries = cache.policy().eviction().orElseThrow()
+                .hottest(WARM_SET_SIZE * 2)
+                .keySet().stream()
+                .filter(key -> key.page() == null)
+                .limit(WARM_SET_SIZE)
+                .map(key -> new WarmQuery(key.query(), key.filter()))
+                .toList();
+
+        try {
+            mapper.writeValue(new File(Constants.SEARCH_WARM_SET_FILE), queries);
+        } catch (IOException e) {
+            ExceptionHandler.handle(e);
+        }
+    }
+
+    // YouTube search isn't case or whitespace sensitive
+    private static String normalize(String query) {
+        return StringUtils.normalizeSpace(query).toLowerCase(Locale.ROOT);
+    }
+
+    private record Key(String query, String filter, String page) {
+    }
+
+    public record WarmQuery(String query, String filter) {
+    }
+}
@@ -0,0 +1,46 @@
+package me.kavin.piped.utils;
+
+import org.apache.commons.lang3.exception.ExceptionUtils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Coalesces concurrent calls for the same key, so that only the first caller does the work and
+ * everyone else waiting on that key receives the same result or exception.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    public V execute(K key, Callable<V> callable) throws Exception {
+
+        final CompletableFuture<V> future = new CompletableFuture<>();
+        final CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+
+        if (existing != null) {
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                return ExceptionUtils.rethrow(e.getCause());
+            }
+        }
+
+        try {
+            V value = callable.call();
+            future.complete(value);
+            return value;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    public int size() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,75 @@
+package me.kavin.piped.utils;
+
+import me.kavin.piped.consts.Constants;
+import me.kavin.piped.utils.obj.PipedStream;
+import me.kavin.piped.utils.obj.Streams;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class StreamsCache {
+
+    // Don't hand out stream URLs which are about to expire
+    private static final long EXPIRY_MARGIN = TimeUnit.MINUTES.toMillis(30);
+
+    // Signed googlevideo URLs carry the expiry either as a query parameter or as a path segment
+    private static final Pattern EXPIRE_PATTERN = Pattern.compile("[?&/]expire[=/](\\d+)");
+
+    // Both windows stay within the expiry margin, so stale entries still have working URLs
+    private static final RevalidatingCache cache = new RevalidatingCache(Constants.STREAMS_CACHE_SIZE,
+            TimeUnit.MINUTES.toMillis(20), TimeUnit.MINUTES.toMillis(25));
+
+    public static byte[] get(String videoId, Callable<RevalidatingCache.Entry> loader) throws Exception {
+        return cache.get(videoId, loader);
+    }
+
+    public static byte[] getManifest(String videoId, Callable<RevalidatingCache.Entry> loader) throws Exception {
+        // video IDs never contain a dot, so this can't clash with a streams entry
+        return cache.get(videoId + ".mpd", loader);
+    }
+
+    /**
+     * @return a cache entry which expires shortly before the first of the signed stream URLs does
+     */
+    public static RevalidatingCache.Entry entry(Streams streams, byte[] body) {
+
+        long expire = getExpiry(streams);
+
+        return new RevalidatingCache.Entry(body, expire < 0 ? -1 : expire - EXPIRY_MARGIN);
+    }
+
+    /**
+     * @return the earliest expiry time in milliseconds of the signed stream URLs, or -1 if there is none
+     */
+    public static long getExpiry(Streams streams) {
+        long expiry = Long.MAX_VALUE;
+
+        for (PipedStream stream : streams.audioStreams)
+            expiry = Math.min(expiry, getExpiry(stream.url));
+        for (PipedStream stream : streams.videoStreams)
+            expiry = Math.min(expiry, getExpiry(stream.url));
+
+        expiry = Math.min(expiry, getExpiry(streams.hls));
+        expiry = Math.min(expiry, getExpiry(streams.dash));
+
+        return expiry == Long.MAX_VALUE ? -1 : expiry;
+    }
+
+    private static long getExpiry(String url) {
+        if (url == null)
+            return Long.MAX_VALUE;
+
+        Matcher matcher = EXPIRE_PATTERN.matcher(url);
+
+        if (!matcher.find())
+            return Long.MAX_VALUE;
+
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(matcher.group(1)));
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
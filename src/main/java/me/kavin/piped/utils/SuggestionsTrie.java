@@ -0,0 +1,363 @@
+package me.kavin.piped.utils;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A prefix trie of the suggestions previously returned by YouTube, used to answer suggestion requests locally.
+ * <p>
+ * Edges are labelled with whole runs of characters, so there are only nodes where terms branch off or end. Terms are
+ * ranked by how often and how recently YouTube returned them. The nodes of short prefixes keep their best completions,
+ * deeper ones have few enough terms below them to rank them when asked.
+ * <p>
+ * Scores decay exponentially, which is done by weighing new hits up instead of weighing old ones down, so the
+ * ranking of existing terms never has to be recomputed.
+ */
+public class SuggestionsTrie {
+
+    private static final int MAX_SUGGESTIONS = 10;
+
+    // a prefix can be answered from the suggestions of a shorter prefix if it has at least this many of them
+    private static final int MIN_INHERITED_SUGGESTIONS = 8;
+
+    private static final long COVERAGE_TTL = TimeUnit.DAYS.toMillis(1);
+    private static final double HALF_LIFE = TimeUnit.DAYS.toMillis(3);
+
+    // prefixes up to this long have too many terms below them to rank them on every request
+    private static final int RANKED_DEPTH = 4;
+
+    // the trie is started over once it grows past this, popular terms are back after a few requests
+    private static final int MAX_NODES = 250_000;
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final char[] NO_KEYS = new char[0];
+    private static final Term[] NO_TERMS = new Term[0];
+
+    private static final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final long epoch = System.currentTimeMillis();
+
+    private static Node root = new Node("", 0);
+    private static int nodes = 1;
+
+    /**
+     * @return the suggestions for the query, or null if the trie doesn't know the prefix well enough
+     */
+    public static List<String> get(String query) {
+
+        final String prefix = normalize(query);
+        final long now = System.currentTimeMillis();
+
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            int depth = 0;
+            boolean covered = isCovered(node, now);
+
+            // whether the prefix ends at the node, rather than within its label
+            boolean exact = true;
+
+            while (depth < prefix.length()) {
+                Node child = node.child(prefix.charAt(depth));
+                if (child == null)
+                    return null;
+
+                int matched = child.match(prefix, depth);
+                depth += matched;
+                node = child;
+
+                if (matched < child.label.length()) {
+                    if (depth < prefix.length())
+                        return null;
+                    exact = false;
+                    break;
+                }
+
+                covered |= isCovered(node, now);
+            }
+
+            if (!covered)
+                return null;
+
+            Term[] top = node.top != null ? node.top : collect(node);
+
+            if (!(exact && isCovered(node, now)) && top.length < MIN_INHERITED_SUGGESTIONS)
+                return null;
+
+            return Arrays.stream(top).map(term -> term.text).toList();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Records the suggestions YouTube returned for a query, the first ones weighing the most.
+     */
+    public static void add(String query, List<String> suggestions) {
+
+        final long now = System.currentTimeMillis();
+        final double boost = Math.pow(2, (now - epoch) / HALF_LIFE);
+
+        lock.writeLock().lock();
+        try {
+            if (nodes > MAX_NODES) {
+                root = new Node("", 0);
+                nodes = 1;
+            }
+
+            for (int i = 0; i < suggestions.size(); i++)
+                addTerm(suggestions.get(i), (suggestions.size() - i) * boost);
+
+            final String key = normalize(query);
+
+            // the root covering every prefix would switch off the upstream fallback
+            if (!key.isEmpty())
+                insert(key).coveredAt = now;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void addTerm(String text, double score) {
+
+        final String key = normalize(text);
+
+        if (key.isEmpty())
+            return;
+
+        Node leaf = insert(key);
+        if (leaf.term == null)
+            leaf.term = new Term(text);
+
+        Term term = leaf.term;
+        term.score += score;
+
+        Node node = root;
+        int depth = 0;
+        node.offer(term);
+
+        // only the nodes of short prefixes are ranked, and they come first
+        while (depth < key.length()) {
+            node = node.child(key.charAt(depth));
+            depth += node.label.length();
+            if (node.top == null)
+                break;
+            node.offer(term);
+        }
+    }
+
+    /**
+     * @return the node of the key, which is created if there is none yet
+     */
+    private static Node insert(String key) {
+
+        Node node = root;
+        int depth = 0;
+
+        while (depth < key.length()) {
+            Node child = node.child(key.charAt(depth));
+
+            if (child == null) {
+                child = new Node(key.substring(depth), key.length());
+                node.addChild(child);
+                nodes++;
+                return child;
+            }
+
+            int matched = child.match(key, depth);
+
+            if (matched < child.label.length()) {
+                child = split(node, child, matched, depth + matched);
+                nodes++;
+            }
+
+            node = child;
+            depth += matched;
+        }
+
+        return node;
+    }
+
+    /**
+     * Splits the label of a child after the given number of characters, with a new node in between.
+     */
+    private static Node split(Node parent, Node child, int length, int depth) {
+
+        Node middle = new Node(child.label.substring(0, length), depth);
+        child.label = child.label.substring(length);
+        middle.addChild(child);
+        parent.replaceChild(middle);
+
+        if (middle.top != null)
+            middle.top = collect(child);
+
+        return middle;
+    }
+
+    /**
+     * Ranks all the terms below a node.
+     */
+    private static Term[] collect(Node node) {
+        Term[] best = new Term[MAX_SUGGESTIONS];
+        int size = collect(node, best, 0);
+        return size == best.length ? best : Arrays.copyOf(best, size);
+    }
+
+    private static int collect(Node node, Term[] best, int size) {
+        if (node.top != null) {
+            for (Term term : node.top)
+                size = rank(best, size, term);
+            return size;
+        }
+
+        if (node.term != null)
+            size = rank(best, size, node.term);
+
+        for (Node child : node.children)
+            size = collect(child, best, size);
+
+        return size;
+    }
+
+    /**
+     * Inserts a term into its place among the best terms so far, if it belongs there.
+     */
+    private static int rank(Term[] best, int size, Term term) {
+        int idx = size;
+
+        if (size == best.length) {
+            if (best[size - 1].score >= term.score)
+                return size;
+            idx = size - 1;
+        } else {
+            size++;
+        }
+
+        while (idx > 0 && best[idx - 1].score < term.score) {
+            best[idx] = best[idx - 1];
+            idx--;
+        }
+
+        best[idx] = term;
+
+        return size;
+    }
+
+    private static boolean isCovered(Node node, long now) {
+        return now - node.coveredAt < COVERAGE_TTL;
+    }
+
+    private static String normalize(String s) {
+        return StringUtils.normalizeSpace(s).toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Node {
+
+        private String label;
+
+        // children are kept sorted by the first character of their label, most nodes have very few
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+
+        private Term term;
+
+        // the best completions below the node, or null if they are only ranked when asked for
+        private Term[] top;
+
+        private long coveredAt;
+
+        /**
+         * @param depth the length of the prefix the node ends at
+         */
+        private Node(String label, int depth) {
+            this.label = label;
+            this.top = depth <= RANKED_DEPTH ? NO_TERMS : null;
+        }
+
+        private Node child(char c) {
+            int idx = Arrays.binarySearch(keys, c);
+            return idx < 0 ? null : children[idx];
+        }
+
+        /**
+         * @return how many characters of the label match the key from the given position
+         */
+        private int match(String key, int from) {
+            int length = Math.min(label.length(), key.length() - from);
+            int i = 0;
+            while (i < length && label.charAt(i) == key.charAt(from + i))
+                i++;
+            return i;
+        }
+
+        private void addChild(Node child) {
+            final char c = child.label.charAt(0);
+            int idx = -Arrays.binarySearch(keys, c) - 1;
+
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, idx);
+            System.arraycopy(children, 0, newChildren, 0, idx);
+            System.arraycopy(keys, idx, newKeys, idx + 1, keys.length - idx);
+            System.arraycopy(children, idx, newChildren, idx + 1, children.length - idx);
+
+            newKeys[idx] = c;
+            newChildren[idx] = child;
+
+            keys = newKeys;
+            children = newChildren;
+        }
+
+        /**
+         * Replaces the child that starts with the same character.
+         */
+        private void replaceChild(Node child) {
+            children[Arrays.binarySearch(keys, child.label.charAt(0))] = child;
+        }
+
+        /**
+         * Moves the term to its place in the best completions of this node, its score can only have gone up.
+         */
+        private void offer(Term term) {
+
+            int idx = -1;
+            for (int i = 0; i < top.length; i++) {
+                if (top[i] == term) {
+                    idx = i;
+                    break;
+                }
+            }
+
+            if (idx < 0) {
+                if (top.length < MAX_SUGGESTIONS) {
+                    top = Arrays.copyOf(top, top.length + 1);
+                } else if (top[top.length - 1].score >= term.score) {
+                    return;
+                }
+                idx = top.length - 1;
+            }
+
+            while (idx > 0 && top[idx - 1].score < term.score) {
+                top[idx] = top[idx - 1];
+                idx--;
+            }
+
+            top[idx] = term;
+        }
+    }
+
+    private static final class Term {
+
+        private final String text;
+        private double score;
+
+        private Term(String text) {
+            this.text = text;
+        }
+    }
+}
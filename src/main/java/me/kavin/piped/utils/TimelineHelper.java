@@ -0,0 +1,241 @@
+package me.kavin.piped.utils;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import me.kavin.piped.consts.Constants;
+import me.kavin.piped.utils.FeedHelpers.FeedCursor;
+import me.kavin.piped.utils.obj.db.Channel;
+import me.kavin.piped.utils.obj.db.Video;
+import org.hibernate.SharedSessionContract;
+import org.hibernate.StatelessSession;
+
+import javax.annotation.Nullable;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * Materialized per-user feed timelines, used instead of joining every subscription on each feed request
+ * when {@link Constants#FEED_TIMELINES} is enabled.
+ * <p>
+ * New videos are pushed into the timeline of every subscriber of their channel as they are inserted. Channels
+ * with at least {@link Constants#FEED_FANOUT_LIMIT} subscribers are instead marked in feed_fanout_on_read, and
+ * their videos are read from the videos table when a feed is generated.
+ */
+public class TimelineHelper {
+
+    private static final Comparator<Video> FEED_ORDER = Comparator.comparingLong(Video::getUploaded)
+            .thenComparing(Video::getId)
+            .reversed();
+
+    /**
+     * Pushes a newly inserted video into the timelines of its channel's subscribers.
+     */
+    public static void fanOut(Video video) {
+        String channelId = video.getChannel().getUploaderId();
+
+        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+            var tr = s.beginTransaction();
+            try {
+                if (!isFanOutOnRead(s, channelId)) {
+                    long subscribers = s.createNativeQuery("SELECT count(*) FROM users_subscribed WHERE channel = :channel", Long.class)
+                            .setParameter("channel", channelId)
+                            .getSingleResult();
+
+                    if (subscribers >= Constants.FEED_FANOUT_LIMIT) {
+                        // once a channel is read on demand it stays that way, so that readers always know where to look
+                        s.createNativeMutationQuery("INSERT INTO feed_fanout_on_read (channel) VALUES (:channel) ON CONFLICT DO NOTHING")
+                                .setParameter("channel", channelId)
+                                .executeUpdate();
+                    } else if (subscribers > 0) {
+                        s.createNativeMutationQuery("INSERT INTO feed_timelines (user_id, video_id, uploaded) " +
+                                        "SELECT subscriber, :video, :uploaded FROM users_subscribed WHERE channel = :channel " +
+                                        "ON CONFLICT DO NOTHING")
+                                .setParameter("video", video.getId())
+                                .setParameter("uploaded", video.getUploaded())
+                                .setParameter("channel", channelId)
+                                .executeUpdate();
+                    }
+                }
+                tr.commit();
+            } catch (Exception e) {
+                tr.rollback();
+                ExceptionHandler.handle(e);
+            }
+        }
+    }
+
+    /**
+     * Drops a user's timeline after their subscriptions changed, it is built again on their next feed request.
+     */
+    public static void invalidate(long userId) {
+        if (!Constants.FEED_TIMELINES)
+            return;
+
+        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+            var tr = s.beginTransaction();
+            try {
+                s.createNativeMutationQuery("DELETE FROM feed_timeline_users WHERE user_id = :user")
+                        .setParameter("user", userId)
+                        .executeUpdate();
+                s.createNativeMutationQuery("DELETE FROM feed_timelines WHERE user_id = :user")
+                        .setParameter("user", userId)
+                        .executeUpdate();
+                tr.commit();
+            } catch (Exception e) {
+                tr.rollback();
+                ExceptionHandler.handle(e);
+            }
+        }
+    }
+
+    /**
+     * @param since only include videos inserted after this time, 0 for all of them
+     */
+    public static Stream<Video> generateFeed(StatelessSession s, long userId, @Nullable FeedCursor after, long since, int maxResults) {
+
+        ensureBuilt(s, userId);
+
+        var timelineQuery = s.createNativeQuery("SELECT {videos.*}, {channels.*} FROM feed_timelines " +
+                        "JOIN videos ON videos.id = feed_timelines.video_id " +
+                        "JOIN channels ON channels.uploader_id = videos.uploader_id " +
+                        "WHERE feed_timelines.user_id = :user " +
+                        (after == null ? "" : "AND (feed_timelines.uploaded, feed_timelines.video_id) < (:uploaded, :id) ") +
+                        (since <= 0 ? "" : "AND videos.inserted > :since ") +
+                        "ORDER BY feed_timelines.uploaded DESC, feed_timelines.video_id DESC")
+                .addEntity("videos", Video.class)
+                .addEntity("channels", Channel.class)
+                .setParameter("user", userId);
+
+        var onReadQuery = s.createNativeQuery("SELECT {videos.*}, {channels.*} FROM videos " +
+                        "JOIN channels ON channels.uploader_id = videos.uploader_id " +
+                        "WHERE videos.uploader_id IN (SELECT users_subscribed.channel FROM users_subscribed " +
+                        "JOIN feed_fanout_on_read ON feed_fanout_on_read.channel = users_subscribed.channel " +
+                        "WHERE users_subscribed.subscriber = :user) " +
+                        (after == null ? "" : "AND (videos.uploaded, videos.id) < (:uploaded, :id) ") +
+                        (since <= 0 ? "" : "AND videos.inserted > :since ") +
+                        "ORDER BY videos.uploaded DESC, videos.id DESC")
+                .addEntity("videos", Video.class)
+                .addEntity("channels", Channel.class)
+                .setParameter("user", userId);
+
+        if (after != null) {
+            timelineQuery.setParameter("uploaded", after.uploaded()).setParameter("id", after.id());
+            onReadQuery.setParameter("uploaded", after.uploaded()).setParameter("id", after.id());
+        }
+
+        if (since > 0) {
+            timelineQuery.setParameter("since", since);
+            onReadQuery.setParameter("since", since);
+        }
+
+        List<Video> timeline = getVideos(timelineQuery
+                .setTimeout(20)
+                .setMaxResults(Math.min(maxResults, Constants.FEED_TIMELINE_SIZE))
+                .getResultList());
+
+        List<Video> onRead = getVideos(onReadQuery
+                .setTimeout(20)
+                .setMaxResults(maxResults)
+                .getResultList());
+
+        if (onRead.isEmpty())
+            return timeline.stream();
+
+        return merge(timeline, onRead, maxResults).stream();
+    }
+
+    /**
+     * Trims every timeline to {@link Constants#FEED_TIMELINE_SIZE} entries, videos past the feed retention are
+     * already removed along with their rows in the videos table.
+     */
+    public static void trimTimelines() {
+        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+            var tr = s.beginTransaction();
+            try {
+                int removed = s.createNativeMutationQuery("DELETE FROM feed_timelines WHERE (user_id, video_id) IN " +
+                                "(SELECT user_id, video_id FROM (SELECT user_id, video_id, " +
+                                "row_number() OVER (PARTITION BY user_id ORDER BY uploaded DESC) AS position " +
+                                "FROM feed_timelines) ranked WHERE position > :size)")
+                        .setParameter("size", Constants.FEED_TIMELINE_SIZE)
+                        .executeUpdate();
+                tr.commit();
+                System.out.printf("Cleanup: Trimmed %d timeline entries%n", removed);
+            } catch (Exception e) {
+                tr.rollback();
+                ExceptionHandler.handle(e);
+            }
+        }
+    }
+
+    private static boolean isFanOutOnRead(SharedSessionContract s, String channelId) {
+        return s.createNativeQuery("SELECT count(*) FROM feed_fanout_on_read WHERE channel = :channel", Long.class)
+                .setParameter("channel", channelId)
+                .getSingleResult() > 0;
+    }
+
+    /**
+     * Fills the timeline of a user from the videos table, the first time they request their feed.
+     */
+    private static void ensureBuilt(StatelessSession s, long userId) {
+        boolean built = s.createNativeQuery("SELECT count(*) FROM feed_timeline_users WHERE user_id = :user", Long.class)
+                .setParameter("user", userId)
+                .getSingleResult() > 0;
+
+        if (built)
+            return;
+
+        var tr = s.beginTransaction();
+        try {
+            s.createNativeMutationQuery("INSERT INTO feed_timelines (user_id, video_id, uploaded) " +
+                            "SELECT :user, videos.id, videos.uploaded FROM videos " +
+                            "JOIN users_subscribed ON users_subscribed.channel = videos.uploader_id " +
+                            "WHERE users_subscribed.subscriber = :user " +
+                            "AND users_subscribed.channel NOT IN (SELECT channel FROM feed_fanout_on_read) " +
+                            "ORDER BY videos.uploaded DESC LIMIT :size " +
+                            "ON CONFLICT DO NOTHING")
+                    .setParameter("user", userId)
+                    .setParameter("size", Constants.FEED_TIMELINE_SIZE)
+                    .executeUpdate();
+            s.createNativeMutationQuery("INSERT INTO feed_timeline_users (user_id) VALUES (:user) ON CONFLICT DO NOTHING")
+                    .setParameter("user", userId)
+                    .executeUpdate();
+            tr.commit();
+        } catch (Exception e) {
+            tr.rollback();
+            throw e;
+        }
+    }
+
+    private static List<Video> getVideos(List<?> rows) {
+        return rows.stream().map(o -> {
+            var arr = (Object[]) o;
+            var video = (Video) arr[0];
+            video.setChannel((Channel) arr[1]);
+            return video;
+        }).toList();
+    }
+
+    /**
+     * Merges two lists in feed order, a video that was pushed before its channel was marked can be in both.
+     */
+    private static List<Video> merge(List<Video> a, List<Video> b, int maxResults) {
+        List<Video> merged = new ObjectArrayList<>(Math.min(maxResults, a.size() + b.size()));
+        Set<String> seen = new ObjectOpenHashSet<>();
+
+        int i = 0, j = 0;
+        while (merged.size() < maxResults && (i < a.size() || j < b.size())) {
+            Video video;
+            if (j == b.size() || (i < a.size() && FEED_ORDER.compare(a.get(i), b.get(j)) <= 0))
+                video = a.get(i++);
+            else
+                video = b.get(j++);
+
+            if (seen.add(video.getId()))
+                merged.add(video);
+        }
+
+        return merged;
+    }
+}
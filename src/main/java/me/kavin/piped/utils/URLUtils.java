@@ -1,18 +1,17 @@
 package me.kavin.piped.utils;
 
 import me.kavin.piped.consts.Constants;
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.lang3.StringUtils;
 import org.schabi.newpipe.extractor.Image;
 
 import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 
 import static me.kavin.piped.consts.Constants.PROXY_HASH_SECRET;
 
@@ -53,105 +52,252 @@ public class URLUtils {
     }
 
     public static String rewriteURL(final String old, final String proxy, final Map<String, String> extraParams) {
+        return rewriteURL(old, proxy, extraParams, PROXY_HASH_SECRET);
+    }
+
+    /**
+     * @param secret the secret the query is signed with, or null to leave the qhash out
+     */
+    static String rewriteURL(final String old, final String proxy, final Map<String, String> extraParams, final byte[] secret) {
 
         if (StringUtils.isEmpty(old)) return null;
 
-        URL url = null;
+        Rewriter rewriter = REWRITERS.poll();
+        if (rewriter == null)
+            rewriter = new Rewriter();
+
         try {
-            url = new URL(old);
-        } catch (MalformedURLException e) {
-            ExceptionHandler.handle(e);
+            return rewriter.rewrite(old, proxy, extraParams, secret);
+        } finally {
+            // dropped if the pool is full, only a burst of concurrent calls needs more of them
+            REWRITERS.offer(rewriter);
         }
-        assert url != null;
-
-        final String host = url.getHost();
+    }
 
-        String query = url.getQuery();
+    // requests run on virtual threads, which are never reused, so a thread local would be created for every request
+    private static final Queue<Rewriter> REWRITERS = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 4);
 
-        boolean hasQuery = query != null && query.length() > 0;
+    /**
+     * Scratch space for {@link #rewriteURL(String, String, Map)}, as it is called for every stream, image and
+     * storyboard URL we hand out. Only used by one thread at a time.
+     */
+    private static final class Rewriter {
 
-        Comparator<List<String>> listComparator = (o1, o2) -> {
-            for (int i = 0; i < Math.min(o1.size(), o2.size()); i++) {
-                int result = o1.get(i).compareTo(o2.get(i));
-                if (result != 0) {
-                    return result;
-                }
-            }
-            return Integer.compare(o1.size(), o2.size()); // compare list sizes if all elements are equal
-        };
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+        private static final char[] UPPER_HEX = "0123456789ABCDEF".toCharArray();
 
-        Set<List<String>> queryPairs = new TreeSet<>(listComparator);
+        private final StringBuilder sb = new StringBuilder(1024);
+        private MessageDigest md;
 
-        if (hasQuery) {
-            String[] pairs = query.split("&");
+        // query pairs, kept sorted by key and then by value
+        private String[] keys = new String[32];
+        private String[] values = new String[32];
+        private int size;
 
-            for (String pair : pairs) {
-                int idx = pair.indexOf("=");
-                queryPairs.add(List.of(
-                        silentDecode(pair.substring(0, idx)),
-                        silentDecode(pair.substring(idx + 1))
-                ));
-            }
+        private MessageDigest getDigest() {
+            if (md == null)
+                try {
+                    md = MessageDigest.getInstance("BLAKE3-256");
+                } catch (NoSuchAlgorithmException e) {
+                    e.printStackTrace();
+                }
+            return md;
         }
 
-        // look for host param, and add it if it doesn't exist
-        boolean hasHost = false;
-        for (List<String> pair : queryPairs) {
-            if (pair.get(0).equals("host")) {
-                hasHost = true;
-                break;
+        private String rewrite(final String old, final String proxy, final Map<String, String> extraParams, final byte[] secret) {
+
+            int authorityStart = old.indexOf("://");
+            if (authorityStart < 0) {
+                ExceptionHandler.handle(new MalformedURLException("no protocol: " + old));
+                return null;
             }
-        }
-        if (!hasHost) {
-            queryPairs.add(List.of("host", host));
-        }
+            authorityStart += 3;
 
-        for (var entry : extraParams.entrySet()) {
-            queryPairs.add(List.of(entry.getKey(), entry.getValue()));
-        }
+            int fragmentStart = old.indexOf('#', authorityStart);
+            int end = fragmentStart < 0 ? old.length() : fragmentStart;
 
-        String path = url.getPath();
+            int queryStart = old.indexOf('?', authorityStart);
+            if (queryStart > end) queryStart = -1;
 
-        if (path.contains("=")) {
-            path = StringUtils.substringBefore(path, "=") + "=" + StringUtils.substringAfter(path, "=").replace("-rj", "-rw");
-        }
+            int pathEnd = queryStart < 0 ? end : queryStart;
+            int pathStart = old.indexOf('/', authorityStart);
+            if (pathStart < 0 || pathStart > pathEnd) pathStart = pathEnd;
+
+            size = 0;
 
-        if (PROXY_HASH_SECRET != null)
             try {
-                MessageDigest md = MessageDigest.getInstance("BLAKE3-256");
-                for (List<String> pair : queryPairs) {
-                    md.update(pair.get(0).getBytes(StandardCharsets.UTF_8));
-                    md.update(pair.get(1).getBytes(StandardCharsets.UTF_8));
+                if (queryStart >= 0)
+                    parseQuery(old, queryStart + 1, end);
+
+                boolean hasHost = false;
+                for (int i = 0; i < size; i++) {
+                    if (keys[i].equals("host")) {
+                        hasHost = true;
+                        break;
+                    }
                 }
+                if (!hasHost)
+                    add("host", getHost(old, authorityStart, pathStart));
 
-                md.update(path.getBytes(StandardCharsets.UTF_8));
+                for (var entry : extraParams.entrySet())
+                    add(entry.getKey(), entry.getValue());
+
+                String path = old.substring(pathStart, pathEnd);
+
+                if (path.contains("=")) {
+                    path = StringUtils.substringBefore(path, "=") + "=" + StringUtils.substringAfter(path, "=").replace("-rj", "-rw");
+                }
 
-                md.update(PROXY_HASH_SECRET);
+                final MessageDigest md = secret == null ? null : getDigest();
 
-                queryPairs.add(List.of("qhash", Hex.encodeHexString(md.digest()).substring(0, 8)));
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
+                if (md != null) {
+                    md.reset();
+                    for (int i = 0; i < size; i++) {
+                        md.update(keys[i].getBytes(StandardCharsets.UTF_8));
+                        md.update(values[i].getBytes(StandardCharsets.UTF_8));
+                    }
+
+                    md.update(path.getBytes(StandardCharsets.UTF_8));
+
+                    md.update(secret);
+
+                    byte[] digest = md.digest();
+                    char[] qhash = new char[8];
+                    for (int i = 0; i < 4; i++) {
+                        qhash[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+                        qhash[i * 2 + 1] = HEX[digest[i] & 0xf];
+                    }
+
+                    add("qhash", new String(qhash));
+                }
+
+                sb.setLength(0);
+                sb.append(proxy).append(path).append('?');
+
+                for (int i = 0; i < size; i++) {
+                    if (i != 0)
+                        sb.append('&');
+                    appendEncoded(keys[i]);
+                    sb.append('=');
+                    appendEncoded(values[i]);
+                }
+
+                return sb.toString();
+            } finally {
+                // don't hold on to the strings of the last URL
+                Arrays.fill(keys, 0, size, null);
+                Arrays.fill(values, 0, size, null);
             }
+        }
 
-        String newUrl = proxy + path;
+        private void parseQuery(final String url, final int start, final int end) {
+            int pairStart = start;
+            while (pairStart < end) {
+                int pairEnd = url.indexOf('&', pairStart);
+                if (pairEnd < 0 || pairEnd > end) pairEnd = end;
 
-        StringBuilder qstring = null;
+                if (pairEnd > pairStart) {
+                    int idx = url.indexOf('=', pairStart);
+                    if (idx < 0 || idx > pairEnd) idx = pairEnd;
+                    add(decode(url, pairStart, idx), decode(url, Math.min(idx + 1, pairEnd), pairEnd));
+                }
 
-        for (List<String> pair : queryPairs) {
-            if (qstring == null) {
-                qstring = new StringBuilder();
+                pairStart = pairEnd + 1;
+            }
+        }
+
+        private static String getHost(final String url, final int start, final int end) {
+            int hostStart = url.lastIndexOf('@', end - 1);
+            hostStart = hostStart < start ? start : hostStart + 1;
+
+            int hostEnd = end;
+            if (hostStart == end || url.charAt(hostStart) != '[') {
+                int portStart = url.indexOf(':', hostStart);
+                if (portStart >= 0 && portStart < end) hostEnd = portStart;
             } else {
-                qstring.append("&");
+                int bracketEnd = url.indexOf(']', hostStart);
+                if (bracketEnd >= 0 && bracketEnd < end) hostEnd = bracketEnd + 1;
+            }
+
+            return url.substring(hostStart, hostEnd);
+        }
+
+        /**
+         * Inserts a pair in sorted position, ignoring exact duplicates. Queries only have a few dozen
+         * parameters, so an insertion sort is cheaper than anything fancier.
+         */
+        private void add(final String key, final String value) {
+            int i = size;
+            while (i > 0) {
+                int result = keys[i - 1].compareTo(key);
+                if (result == 0)
+                    result = values[i - 1].compareTo(value);
+                if (result == 0)
+                    return;
+                if (result < 0)
+                    break;
+                i--;
             }
 
-            qstring.append(silentEncode(pair.get(0)));
-            qstring.append("=");
-            qstring.append(silentEncode(pair.get(1)));
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            System.arraycopy(keys, i, keys, i + 1, size - i);
+            System.arraycopy(values, i, values, i + 1, size - i);
+            keys[i] = key;
+            values[i] = value;
+            size++;
         }
 
-        newUrl += "?" + qstring;
+        /**
+         * Most parts of a query need no decoding, which saves a copy and a decoder.
+         */
+        private static String decode(final String url, final int start, final int end) {
+            for (int i = start; i < end; i++) {
+                char c = url.charAt(i);
+                if (c == '%' || c == '+')
+                    return silentDecode(url.substring(start, end));
+            }
+            return url.substring(start, end);
+        }
 
-        return newUrl;
+        /**
+         * Encodes like {@link URLEncoder} with UTF-8 does, but straight into the builder.
+         */
+        private void appendEncoded(final String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+                        || c == '-' || c == '_' || c == '.' || c == '*') {
+                    sb.append(c);
+                } else if (c == ' ') {
+                    sb.append('+');
+                } else if (c < 0x80) {
+                    appendEscaped(c);
+                } else if (c < 0x800) {
+                    appendEscaped(0xc0 | (c >> 6));
+                    appendEscaped(0x80 | (c & 0x3f));
+                } else if (!Character.isSurrogate(c)) {
+                    appendEscaped(0xe0 | (c >> 12));
+                    appendEscaped(0x80 | ((c >> 6) & 0x3f));
+                    appendEscaped(0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    appendEscaped(0xf0 | (codePoint >> 18));
+                    appendEscaped(0x80 | ((codePoint >> 12) & 0x3f));
+                    appendEscaped(0x80 | ((codePoint >> 6) & 0x3f));
+                    appendEscaped(0x80 | (codePoint & 0x3f));
+                } else {
+                    // the encoder replaces malformed input
+                    appendEscaped('?');
+                }
+            }
+        }
 
+        private void appendEscaped(final int b) {
+            sb.append('%').append(UPPER_HEX[b >> 4]).append(UPPER_HEX[b & 0xf]);
+        }
     }
 }
@@ -0,0 +1,90 @@
+package me.kavin.piped.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import me.kavin.piped.consts.Constants;
+import org.hibernate.StatelessSession;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the channels of unauthenticated feeds, so that they are kept subscribed to and their channels exist.
+ * <p>
+ * Feed requests only queue their channels, which are written in one batch by {@link #flush()}. A channel that was
+ * written recently isn't queued again, its subscription is only refreshed once half of its expiry has passed anyway.
+ */
+public class UnauthenticatedSubscriptionHelper {
+
+    private static final Set<String> pendingIds = ConcurrentHashMap.newKeySet();
+
+    private static final Cache<String, Boolean> recentlyFlushed = Caffeine.newBuilder()
+            .maximumSize(250_000)
+            .expireAfterWrite(1, TimeUnit.HOURS)
+            .build();
+
+    /**
+     * @param channelIds the validated channel IDs of an unauthenticated feed
+     */
+    public static void queue(Collection<String> channelIds) {
+        for (String channelId : channelIds)
+            if (recentlyFlushed.getIfPresent(channelId) == null)
+                pendingIds.add(channelId);
+    }
+
+    /**
+     * Refreshes or inserts the subscriptions of the queued channels and saves the channels we don't know yet.
+     */
+    public static void flush() {
+
+        List<String> batch = new ObjectArrayList<>(pendingIds.size());
+
+        for (String channelId : pendingIds) {
+            pendingIds.remove(channelId);
+            batch.add(channelId);
+        }
+
+        if (batch.isEmpty())
+            return;
+
+        // channel IDs are validated, so they can't contain a comma
+        final String ids = String.join(",", batch);
+        final long now = System.currentTimeMillis();
+
+        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+            var tr = s.beginTransaction();
+            try {
+                s.createNativeMutationQuery("INSERT INTO unauthenticated_subscriptions (id, subscribed_at) " +
+                                "SELECT pending.id, :now FROM unnest(string_to_array(:ids, ',')) AS pending (id) " +
+                                "ON CONFLICT (id) DO UPDATE SET subscribed_at = excluded.subscribed_at " +
+                                "WHERE unauthenticated_subscriptions.subscribed_at < :refresh")
+                        .setParameter("ids", ids)
+                        .setParameter("now", now)
+                        .setParameter("refresh", now - TimeUnit.DAYS.toMillis(Constants.SUBSCRIPTIONS_EXPIRY) / 2)
+                        .executeUpdate();
+                tr.commit();
+            } catch (Exception e) {
+                tr.rollback();
+                ExceptionHandler.handle(e);
+                return;
+            }
+
+            List<String> missing = s.createNativeQuery("SELECT pending.id FROM unnest(string_to_array(:ids, ',')) AS pending (id) " +
+                            "WHERE NOT EXISTS (SELECT 1 FROM channels WHERE channels.uploader_id = pending.id)", String.class)
+                    .setParameter("ids", ids)
+                    .setTimeout(20)
+                    .getResultList();
+
+            missing.forEach(id -> Multithreading.runAsyncLimited(() -> DatabaseHelper.saveChannel(id)));
+        } catch (Exception e) {
+            ExceptionHandler.handle(e);
+            return;
+        }
+
+        batch.forEach(id -> recentlyFlushed.put(id, Boolean.TRUE));
+    }
+}
@@ -0,0 +1,66 @@
+package me.kavin.piped.utils;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import org.schabi.newpipe.extractor.exceptions.*;
+
+import java.time.Duration;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Remembers videos which recently failed with a content error, so that repeated requests for deleted, private or
+ * geo restricted videos fail fast instead of going through a full extraction again.
+ */
+public class UnavailableCache {
+
+    private static final Cache<String, CachedError> cache = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfter(Expiry.creating((String videoId, CachedError cached) -> cached.ttl()))
+            .build();
+
+    /**
+     * @return the exception the last extraction of this video failed with, or null if there is none cached
+     */
+    public static Exception get(String videoId) {
+        CachedError cached = cache.getIfPresent(videoId);
+
+        return cached == null ? null : cached.exception();
+    }
+
+    public static void put(String videoId, Exception e) {
+        Duration ttl = getTTL(e);
+
+        if (ttl != null)
+            cache.put(videoId, new CachedError(e, ttl));
+    }
+
+    /**
+     * @return how long the error can be cached for, or null if it is likely transient
+     */
+    private static Duration getTTL(Throwable e) {
+
+        if (e.getCause() != null && (e instanceof ExecutionException || e instanceof CompletionException))
+            e = e.getCause();
+
+        return switch (e) {
+            // private videos are often made public shortly after
+            case PrivateContentException ignored -> Duration.ofMinutes(5);
+            // the federated bypass might succeed on a later attempt
+            case GeographicRestrictionException ignored -> Duration.ofMinutes(15);
+            case AgeRestrictedContentException ignored -> Duration.ofMinutes(30);
+            case PaidContentException ignored -> Duration.ofHours(1);
+            case ContentNotAvailableException cnae when isRemoved(cnae) -> Duration.ofHours(1);
+            case ContentNotAvailableException ignored -> Duration.ofMinutes(5);
+            default -> null;
+        };
+    }
+
+    private static boolean isRemoved(ContentNotAvailableException e) {
+        return "This video is not available".equals(e.getMessage()) || "Got error: \"Video unavailable\"".equals(e.getMessage());
+    }
+
+    private record CachedError(Exception exception, Duration ttl) {
+    }
+}
@@ -1,16 +1,21 @@
 package me.kavin.piped.utils;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.grack.nanojson.JsonObject;
 import com.grack.nanojson.JsonWriter;
 import me.kavin.piped.consts.Constants;
 import me.kavin.piped.utils.obj.db.Video;
 import org.apache.commons.lang3.StringUtils;
 import org.hibernate.StatelessSession;
+import org.schabi.newpipe.extractor.exceptions.ParsingException;
 import org.schabi.newpipe.extractor.stream.StreamExtractor;
 import org.schabi.newpipe.extractor.stream.StreamInfo;
 import org.schabi.newpipe.extractor.stream.StreamInfoItem;
+import org.schabi.newpipe.extractor.stream.StreamType;
 
 import java.util.Optional;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -21,6 +26,18 @@ import static org.schabi.newpipe.extractor.services.youtube.YoutubeParsingHelper
 import static org.schabi.newpipe.extractor.services.youtube.YoutubeParsingHelper.prepareDesktopJsonBuilder;
 
 public class VideoHelpers {
+
+    // shorts can't be longer than three minutes
+    private static final long MAX_SHORT_DURATION = 180;
+
+    private static final Cache<String, Boolean> shorts = Caffeine.newBuilder()
+            .maximumSize(100_000)
+            .expireAfterWrite(1, TimeUnit.DAYS)
+            .build();
+
+    // bounds the resolve_url calls made for videos we know nothing about
+    private static final Semaphore resolveLimiter = new Semaphore(Runtime.getRuntime().availableProcessors() * 2);
+
     public static void handleNewVideo(String url, long time, me.kavin.piped.utils.obj.db.Channel channel) {
         try {
             var extractor = YOUTUBE_SERVICE.getStreamExtractor(url);
@@ -43,11 +60,11 @@ public class VideoHelpers {
         if (channel != null
                 && (System.currentTimeMillis() - infoTime) < TimeUnit.DAYS.toMillis(Constants.FEED_RETENTION)) {
 
-            info.setShortFormContent(isShort(info.getId()));
-
             try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
                 if (!DatabaseHelper.doesVideoExist(s, info.getId())) {
 
+                    info.setShortFormContent(isShort(info.getId(), info.getDuration(), info.getStreamType(), info.isShortFormContent()));
+
                     Video video = new Video(info.getId(), info.getName(), info.getViewCount(), info.getDuration(),
                             Math.max(infoTime, time), info.getThumbnails().getLast().getUrl(), info.isShortFormContent(), channel);
 
@@ -77,7 +94,7 @@ public class VideoHelpers {
             try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
                 if (!DatabaseHelper.doesVideoExist(s, extractor.getId())) {
 
-                    boolean isShort = extractor.isShortFormContent() || isShort(extractor.getId());
+                    boolean isShort = isShort(extractor.getId(), extractor.getLength(), extractor.getStreamType(), extractor.isShortFormContent());
 
                     Video video = new Video(extractor.getId(), extractor.getName(), extractor.getViewCount(), extractor.getLength(),
                             Math.max(infoTime, time), extractor.getThumbnails().getLast().getUrl(), isShort, channel);
@@ -90,7 +107,52 @@ public class VideoHelpers {
 
     }
 
-    public static boolean isShort(String videoId) throws Exception {
+    /**
+     * Records whether a video is a short from a listing, so that it doesn't have to be resolved when it's ingested.
+     */
+    public static void recordShortFormContent(StreamInfoItem item) {
+        // only the shorts tab and shelves mark items, so anything else tells us nothing
+        if (item.isShortFormContent())
+            try {
+                shorts.put(YOUTUBE_SERVICE.getStreamLHFactory().getId(item.getUrl()), Boolean.TRUE);
+            } catch (ParsingException ignored) {
+            }
+    }
+
+    /**
+     * Classifies a video with what we already know about it, and only resolves it as a last resort.
+     *
+     * @param duration         the duration in seconds, or a non-positive value if unknown
+     * @param shortFormContent whether the extractor already saw the video as a short
+     */
+    public static boolean isShort(String videoId, long duration, StreamType streamType, boolean shortFormContent) throws Exception {
+
+        if (shortFormContent)
+            return true;
+
+        if (duration > MAX_SHORT_DURATION || streamType == StreamType.LIVE_STREAM || streamType == StreamType.AUDIO_LIVE_STREAM)
+            return false;
+
+        Boolean known = shorts.getIfPresent(videoId);
+
+        if (known != null)
+            return known;
+
+        boolean isShort;
+
+        resolveLimiter.acquire();
+        try {
+            isShort = isShort(videoId);
+        } finally {
+            resolveLimiter.release();
+        }
+
+        shorts.put(videoId, isShort);
+
+        return isShort;
+    }
+
+    private static boolean isShort(String videoId) throws Exception {
 
         final byte[] body = JsonWriter.string(prepareDesktopJsonBuilder(
                         getPreferredLocalization(), getPreferredContentCountry())
@@ -154,17 +216,23 @@ public class VideoHelpers {
                 return true;
             }
 
+            if (updated > 0)
+                VideoIndex.update(id, views, duration, title);
+
             return updated > 0;
         }
     }
 
     public static void insertVideo(Video video) {
+        video.setInserted(System.currentTimeMillis());
+
         try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
             var tr = s.beginTransaction();
             try {
+                // a video that already exists keeps the time it was first inserted
                 s.createNativeMutationQuery(
-                                "INSERT INTO videos (uploader_id,duration,is_short,thumbnail,title,uploaded,views,id) values " +
-                                        "(:uploader_id,:duration,:is_short,:thumbnail,:title,:uploaded,:views,:id) ON CONFLICT (id) DO UPDATE SET " +
+                                "INSERT INTO videos (uploader_id,duration,is_short,thumbnail,title,uploaded,inserted,views,id) values " +
+                                        "(:uploader_id,:duration,:is_short,:thumbnail,:title,:uploaded,:inserted,:views,:id) ON CONFLICT (id) DO UPDATE SET " +
                                         "duration = excluded.duration, title = excluded.title, views = excluded.views"
                         )
                         .setParameter("uploader_id", video.getChannel().getUploaderId())
@@ -173,6 +241,7 @@ public class VideoHelpers {
                         .setParameter("thumbnail", video.getThumbnail())
                         .setParameter("title", video.getTitle())
                         .setParameter("uploaded", video.getUploaded())
+                        .setParameter("inserted", video.getInserted())
                         .setParameter("views", video.getViews())
                         .setParameter("id", video.getId())
                         .executeUpdate();
@@ -180,7 +249,19 @@ public class VideoHelpers {
             } catch (Exception e) {
                 tr.rollback();
                 ExceptionHandler.handle(e);
+                return;
             }
         }
+
+        VideoIndex.add(video);
+        FeedCache.invalidate(video.getChannel().getUploaderId());
+        // the index publishes the videos it picks up, whichever node inserted them
+        if (!Constants.FEED_INDEX)
+            FeedStreams.publish(video);
+
+        if (Constants.FEED_TIMELINES)
+            TimelineHelper.fanOut(video);
+
+        LbryHelper.queueLBRYId(video.getId());
     }
 }
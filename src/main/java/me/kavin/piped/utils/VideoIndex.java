@@ -0,0 +1,562 @@
+package me.kavin.piped.utils;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import jakarta.persistence.criteria.JoinType;
+import me.kavin.piped.consts.Constants;
+import me.kavin.piped.utils.FeedHelpers.FeedCursor;
+import me.kavin.piped.utils.obj.db.Channel;
+import me.kavin.piped.utils.obj.db.Video;
+import org.hibernate.StatelessSession;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the videos within the feed retention in memory, so that feeds can be assembled without querying the
+ * database when {@link Constants#FEED_INDEX} is enabled.
+ * <p>
+ * Each channel's videos are held in immutable arrays sorted by upload time and then by id, which are replaced
+ * whenever a video is added or updated. Video IDs are packed into a long, in an order that matches the order of
+ * the IDs as strings.
+ * <p>
+ * Videos that are new to the index are published to {@link FeedStreams}, including the ones inserted by other nodes,
+ * which are picked up by the next sync.
+ */
+public class VideoIndex {
+
+    private static final String ALPHABET = "-0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ_abcdefghijklmnopqrstuvwxyz";
+    // the last character of a video ID only carries 4 bits
+    private static final String LAST_ALPHABET = "048AEIMQUYcgkosw";
+
+    // videos are inserted by whichever node received them, so pick up the ones inserted since the last sync
+    private static final long SYNC_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    // a video is stamped before its transaction commits, and by the clock of the node that inserted it
+    private static final long SYNC_OVERLAP = TimeUnit.MINUTES.toMillis(1);
+
+    // views and titles are updated by whichever node saw them too, which is caught up on less often
+    private static final long REFRESH_INTERVAL = TimeUnit.HOURS.toMillis(1);
+    private static final long REFRESH_WINDOW = TimeUnit.DAYS.toMillis(1);
+
+    private static final Map<String, ChannelVideos> channels = new ConcurrentHashMap<>();
+
+    private static final Long2ObjectMap<String> videoChannels = Long2ObjectMaps.synchronize(new Long2ObjectOpenHashMap<>());
+
+    private static volatile boolean ready = false;
+
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Loads the index in the background and keeps it in sync with the database, feeds are generated from the
+     * database until it is loaded.
+     */
+    public static void start() {
+        if (!Constants.FEED_INDEX)
+            return;
+
+        final Timer timer = new Timer("Video-Index", true);
+
+        timer.schedule(new TimerTask() {
+
+            private long syncedAt;
+            private long refreshedAt;
+
+            @Override
+            public void run() {
+                final long now = System.currentTimeMillis();
+                try {
+                    // retried on every run until it succeeds
+                    if (!ready) {
+                        long start = System.nanoTime();
+                        int count = load("uploaded", getRetentionCutoff());
+                        syncedAt = refreshedAt = now;
+                        ready = true;
+                        System.out.printf("Video index: Loaded %d videos of %d channels in %d ms%n", count, channels.size(),
+                                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        return;
+                    }
+
+                    load("inserted", syncedAt - SYNC_OVERLAP);
+                    syncedAt = now;
+
+                    if (now - refreshedAt >= REFRESH_INTERVAL) {
+                        load("uploaded", now - REFRESH_WINDOW);
+                        refreshedAt = now;
+                    }
+
+                    prune(getRetentionCutoff());
+                } catch (Exception e) {
+                    ExceptionHandler.handle(e);
+                }
+            }
+        }, 0, SYNC_INTERVAL);
+    }
+
+    public static void add(Video video) {
+        if (!Constants.FEED_INDEX || !canEncode(video.getId()) || video.getUploaded() < getRetentionCutoff())
+            return;
+
+        final Channel channel = video.getChannel();
+        final long id = encode(video.getId());
+
+        channels.compute(channel.getUploaderId(), (key, videos) -> videos == null ?
+                ChannelVideos.of(channel, List.of(video)) :
+                videos.with(id, video));
+
+        // the sync might have picked it up already
+        if (videoChannels.put(id, channel.getUploaderId()) == null)
+            FeedStreams.publish(video);
+    }
+
+    /**
+     * @see VideoHelpers#updateVideo(String, long, long, String)
+     */
+    public static void update(String videoId, long views, long duration, String title) {
+        if (!Constants.FEED_INDEX || !canEncode(videoId))
+            return;
+
+        final long id = encode(videoId);
+        final String channelId = videoChannels.get(id);
+
+        if (channelId != null)
+            channels.computeIfPresent(channelId, (key, videos) -> videos.withUpdate(id, views, duration, title));
+    }
+
+    public static void updateChannel(Channel channel) {
+        if (Constants.FEED_INDEX)
+            channels.computeIfPresent(channel.getUploaderId(), (key, videos) -> videos.withChannel(channel));
+    }
+
+    /**
+     * @param channelIds the sorted channel IDs of a feed
+     * @param cutoff     only count the videos uploaded at or after this time
+     * @return the number of videos and the newest upload time, like the database would return them
+     * @see FeedHelpers#createETag
+     */
+    public static String getVersion(String[] channelIds, long cutoff) {
+        long count = 0, newest = 0;
+        for (String channelId : channelIds) {
+            ChannelVideos videos = channels.get(channelId);
+            if (videos == null)
+                continue;
+            int channelCount = videos.indexBefore(cutoff);
+            if (channelCount > 0) {
+                count += channelCount;
+                newest = Math.max(newest, videos.uploaded[0]);
+            }
+        }
+        return count + ":" + newest;
+    }
+
+    /**
+     * Merges the videos of the channels in feed order.
+     *
+     * @param after the position of the last video of the previous page, or null for the first page
+     */
+    public static Stream<Video> generateFeed(Collection<String> channelIds, @Nullable FeedCursor after, int maxResults) {
+
+        final List<ChannelVideos> lists = getChannelVideos(channelIds);
+
+        // every video in the index has an encodable ID, so nothing can follow any other video
+        if (after != null && !canEncode(after.id()))
+            return Stream.empty();
+
+        final boolean hasCursor = after != null;
+        final long afterUploaded = hasCursor ? after.uploaded() : 0;
+        final long afterId = hasCursor ? encode(after.id()) : 0;
+
+        // a binary heap of the lists by their current video, which is the newest video that's left
+        final int[] heap = new int[lists.size()];
+        final int[] positions = new int[lists.size()];
+        int size = 0;
+
+        for (int i = 0; i < lists.size(); i++) {
+            positions[i] = hasCursor ? lists.get(i).indexAfter(afterUploaded, afterId) : 0;
+            if (positions[i] < lists.get(i).size()) {
+                heap[size] = i;
+                siftUp(heap, size++, lists, positions);
+            }
+        }
+
+        final List<Video> feed = new ObjectArrayList<>(Math.min(maxResults, 256));
+
+        while (size > 0 && feed.size() < maxResults) {
+            final int top = heap[0];
+            final ChannelVideos videos = lists.get(top);
+
+            feed.add(videos.get(positions[top]++));
+
+            if (positions[top] == videos.size())
+                heap[0] = heap[--size];
+            siftDown(heap, size, lists, positions);
+        }
+
+        return feed.stream();
+    }
+
+    /**
+     * The videos of the channels that were inserted after the given time, in feed order. Videos can be inserted long
+     * after they were uploaded, so every video of the channels is checked.
+     */
+    public static Stream<Video> generateDelta(Collection<String> channelIds, long insertedAfter, int maxResults) {
+
+        final List<Video> delta = new ObjectArrayList<>();
+
+        for (ChannelVideos videos : getChannelVideos(channelIds))
+            for (int i = 0; i < videos.size(); i++)
+                if (videos.inserted[i] > insertedAfter)
+                    delta.add(videos.get(i));
+
+        delta.sort(Comparator.comparingLong(Video::getUploaded).thenComparing(Video::getId).reversed());
+
+        return delta.stream().limit(maxResults);
+    }
+
+    private static List<ChannelVideos> getChannelVideos(Collection<String> channelIds) {
+        final List<ChannelVideos> lists = new ObjectArrayList<>(channelIds.size());
+        for (String channelId : channelIds) {
+            ChannelVideos videos = channels.get(channelId);
+            if (videos != null)
+                lists.add(videos);
+        }
+        return lists;
+    }
+
+    private static void siftUp(int[] heap, int i, List<ChannelVideos> lists, int[] positions) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (compare(heap[i], heap[parent], lists, positions) >= 0)
+                break;
+            swap(heap, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int size, List<ChannelVideos> lists, int[] positions) {
+        int i = 0;
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size)
+                break;
+            int child = left + 1 < size && compare(heap[left + 1], heap[left], lists, positions) < 0 ? left + 1 : left;
+            if (compare(heap[child], heap[i], lists, positions) >= 0)
+                break;
+            swap(heap, i, child);
+            i = child;
+        }
+    }
+
+    /**
+     * Compares the current videos of two lists, newer videos come first.
+     */
+    private static int compare(int a, int b, List<ChannelVideos> lists, int[] positions) {
+        ChannelVideos x = lists.get(a), y = lists.get(b);
+        int i = positions[a], j = positions[b];
+        return compareDescending(x.uploaded[i], x.ids[i], y.uploaded[j], y.ids[j]);
+    }
+
+    private static int compareDescending(long uploadedA, long idA, long uploadedB, long idB) {
+        int result = Long.compare(uploadedB, uploadedA);
+        return result != 0 ? result : Long.compareUnsigned(idB, idA);
+    }
+
+    private static void swap(int[] heap, int i, int j) {
+        int tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
+    }
+
+    /**
+     * Loads the videos whose upload or insertion time is at or after the given time, updating the ones already in the
+     * index.
+     *
+     * @param attribute either uploaded or inserted
+     * @return the number of videos loaded
+     */
+    private static int load(String attribute, long after) {
+        final Map<String, List<Video>> loaded = new Object2ObjectOpenHashMap<>();
+        final Map<String, Channel> loadedChannels = new Object2ObjectOpenHashMap<>();
+
+        try (StatelessSession s = DatabaseSessionFactory.createStatelessSession()) {
+            var cb = s.getCriteriaBuilder();
+            var criteria = cb.createQuery(Video.class);
+            var root = criteria.from(Video.class);
+            root.fetch("channel", JoinType.INNER);
+            criteria.select(root)
+                    .where(cb.greaterThanOrEqualTo(root.get(attribute), after));
+
+            s.createQuery(criteria).stream()
+                    .filter(video -> canEncode(video.getId()))
+                    .forEach(video -> {
+                        String channelId = video.getChannel().getUploaderId();
+                        loadedChannels.putIfAbsent(channelId, video.getChannel());
+                        loaded.computeIfAbsent(channelId, key -> new ObjectArrayList<>()).add(video);
+                    });
+        }
+
+        // videos inserted by other nodes reach the listeners of this one here, but not the ones of the initial load
+        final boolean publish = ready;
+
+        int count = 0;
+
+        for (var entry : loaded.entrySet()) {
+            final Channel channel = loadedChannels.get(entry.getKey());
+            final List<Video> videos = entry.getValue();
+
+            channels.compute(entry.getKey(), (key, existing) -> {
+                if (existing == null)
+                    return ChannelVideos.of(channel, videos);
+                // mostly videos that are already known and unchanged, which keep the existing instance
+                existing = existing.withChannel(channel);
+                for (Video video : videos)
+                    existing = existing.with(encode(video.getId()), video);
+                return existing;
+            });
+
+            for (Video video : videos)
+                if (videoChannels.put(encode(video.getId()), entry.getKey()) == null && publish)
+                    FeedStreams.publish(video);
+
+            count += videos.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * Drops the videos that were removed from the database for being past the feed retention.
+     */
+    private static void prune(long cutoff) {
+        for (String channelId : channels.keySet()) {
+            channels.computeIfPresent(channelId, (key, videos) -> {
+                int keep = videos.indexBefore(cutoff);
+                if (keep == videos.size())
+                    return videos;
+                for (int i = keep; i < videos.size(); i++)
+                    videoChannels.remove(videos.ids[i]);
+                return keep == 0 ? null : videos.truncate(keep);
+            });
+        }
+    }
+
+    private static long getRetentionCutoff() {
+        return System.currentTimeMillis() - TimeUnit.DAYS.toMillis(Constants.FEED_RETENTION);
+    }
+
+    private static boolean canEncode(String videoId) {
+        if (videoId == null || videoId.length() != 11)
+            return false;
+        for (int i = 0; i < 10; i++)
+            if (ALPHABET.indexOf(videoId.charAt(i)) < 0)
+                return false;
+        return LAST_ALPHABET.indexOf(videoId.charAt(10)) >= 0;
+    }
+
+    private static long encode(String videoId) {
+        long value = 0;
+        for (int i = 0; i < 10; i++)
+            value = value << 6 | ALPHABET.indexOf(videoId.charAt(i));
+        return value << 4 | LAST_ALPHABET.indexOf(videoId.charAt(10));
+    }
+
+    private static String decode(long value) {
+        char[] chars = new char[11];
+        chars[10] = LAST_ALPHABET.charAt((int) (value & 0xf));
+        value >>>= 4;
+        for (int i = 9; i >= 0; i--) {
+            chars[i] = ALPHABET.charAt((int) (value & 0x3f));
+            value >>>= 6;
+        }
+        return new String(chars);
+    }
+
+    /**
+     * The videos of a channel, newest first. Instances are never modified, changes return a new instance.
+     */
+    private static final class ChannelVideos {
+
+        private final Channel channel;
+        private final long[] uploaded;
+        private final long[] inserted;
+        private final long[] ids;
+        private final long[] views;
+        private final long[] durations;
+        private final boolean[] shorts;
+        private final String[] titles;
+        private final String[] thumbnails;
+
+        private ChannelVideos(Channel channel, long[] uploaded, long[] inserted, long[] ids, long[] views, long[] durations,
+                              boolean[] shorts, String[] titles, String[] thumbnails) {
+            this.channel = channel;
+            this.uploaded = uploaded;
+            this.inserted = inserted;
+            this.ids = ids;
+            this.views = views;
+            this.durations = durations;
+            this.shorts = shorts;
+            this.titles = titles;
+            this.thumbnails = thumbnails;
+        }
+
+        private static ChannelVideos of(Channel channel, List<Video> videos) {
+            final int size = videos.size();
+            final long[] ids = new long[size];
+            final Integer[] order = new Integer[size];
+
+            for (int i = 0; i < size; i++) {
+                ids[i] = encode(videos.get(i).getId());
+                order[i] = i;
+            }
+
+            Arrays.sort(order, (a, b) -> compareDescending(videos.get(a).getUploaded(), ids[a], videos.get(b).getUploaded(), ids[b]));
+
+            ChannelVideos result = new ChannelVideos(channel, new long[size], new long[size], new long[size], new long[size],
+                    new long[size], new boolean[size], new String[size], new String[size]);
+
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                // the same video may have been loaded more than once
+                if (count > 0 && result.ids[count - 1] == ids[order[i]])
+                    continue;
+                result.set(count++, ids[order[i]], videos.get(order[i]));
+            }
+
+            return count == size ? result : result.truncate(count);
+        }
+
+        private int size() {
+            return ids.length;
+        }
+
+        private Video get(int i) {
+            Video video = new Video(decode(ids[i]), titles[i], views[i], durations[i], uploaded[i], thumbnails[i], shorts[i], channel);
+            video.setInserted(inserted[i]);
+            return video;
+        }
+
+        private void set(int i, long id, Video video) {
+            uploaded[i] = video.getUploaded();
+            inserted[i] = video.getInserted();
+            ids[i] = id;
+            views[i] = video.getViews();
+            durations[i] = video.getDuration();
+            shorts[i] = video.isShort();
+            titles[i] = video.getTitle();
+            thumbnails[i] = video.getThumbnail();
+        }
+
+        private int indexOf(long id) {
+            for (int i = 0; i < ids.length; i++)
+                if (ids[i] == id)
+                    return i;
+            return -1;
+        }
+
+        /**
+         * @return the index of the first video that comes after the given position in feed order
+         */
+        private int indexAfter(long afterUploaded, long afterId) {
+            int low = 0, high = ids.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareDescending(uploaded[mid], ids[mid], afterUploaded, afterId) <= 0)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        /**
+         * @return the index of the first video uploaded before the given time
+         */
+        private int indexBefore(long time) {
+            int low = 0, high = uploaded.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (uploaded[mid] >= time)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            return low;
+        }
+
+        private ChannelVideos with(long id, Video video) {
+            final int existing = indexOf(id);
+
+            // the upload time of a video never changes once inserted, like in the database
+            if (existing >= 0)
+                return withUpdate(id, video.getViews(), video.getDuration(), video.getTitle());
+
+            final int pos = indexAfter(video.getUploaded(), id);
+            final int size = size();
+
+            ChannelVideos result = new ChannelVideos(channel, new long[size + 1], new long[size + 1], new long[size + 1],
+                    new long[size + 1], new long[size + 1], new boolean[size + 1], new String[size + 1], new String[size + 1]);
+
+            result.copyFrom(this, 0, 0, pos);
+            result.set(pos, id, video);
+            result.copyFrom(this, pos, pos + 1, size - pos);
+
+            return result;
+        }
+
+        private ChannelVideos withUpdate(long id, long views, long duration, String title) {
+            final int i = indexOf(id);
+            if (i < 0)
+                return this;
+
+            // only the known values are updated, like in the database
+            if ((views <= 0 || views == this.views[i]) && (duration <= 0 || duration == durations[i]) &&
+                    (title == null || title.equals(titles[i])))
+                return this;
+
+            final ChannelVideos result = new ChannelVideos(channel, uploaded, inserted, ids, this.views.clone(),
+                    durations.clone(), shorts, title == null ? titles : titles.clone(), thumbnails);
+
+            if (views > 0)
+                result.views[i] = views;
+            if (duration > 0)
+                result.durations[i] = duration;
+            if (title != null)
+                result.titles[i] = title;
+
+            return result;
+        }
+
+        private ChannelVideos withChannel(Channel channel) {
+            if (Objects.equals(channel.getUploader(), this.channel.getUploader()) &&
+                    Objects.equals(channel.getUploaderAvatar(), this.channel.getUploaderAvatar()) &&
+                    channel.isVerified() == this.channel.isVerified())
+                return this;
+
+            return new ChannelVideos(channel, uploaded, inserted, ids, views, durations, shorts, titles, thumbnails);
+        }
+
+        private ChannelVideos truncate(int size) {
+            return new ChannelVideos(channel, Arrays.copyOf(uploaded, size), Arrays.copyOf(inserted, size), Arrays.copyOf(ids, size),
+                    Arrays.copyOf(views, size), Arrays.copyOf(durations, size), Arrays.copyOf(shorts, size),
+                    Arrays.copyOf(titles, size), Arrays.copyOf(thumbnails, size));
+        }
+
+        private void copyFrom(ChannelVideos source, int from, int to, int length) {
+            System.arraycopy(source.uploaded, from, uploaded, to, length);
+            System.arraycopy(source.inserted, from, inserted, to, length);
+            System.arraycopy(source.ids, from, ids, to, length);
+            System.arraycopy(source.views, from, views, to, length);
+            System.arraycopy(source.durations, from, durations, to, length);
+            System.arraycopy(source.shorts, from, shorts, to, length);
+            System.arraycopy(source.titles, from, titles, to, length);
+            System.arraycopy(source.thumbnails, from, thumbnails, to, length);
+        }
+    }
+}
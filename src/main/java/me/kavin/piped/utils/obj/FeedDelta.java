@@ -0,0 +1,16 @@
+package me.kavin.piped.utils.obj;
+
+import java.util.List;
+
+public class FeedDelta {
+
+    public List<ContentItem> relatedStreams;
+    public long watermark;
+    public boolean resync;
+
+    public FeedDelta(List<ContentItem> relatedStreams, long watermark, boolean resync) {
+        this.relatedStreams = relatedStreams;
+        this.watermark = watermark;
+        this.resync = resync;
+    }
+}
@@ -0,0 +1,35 @@
+package me.kavin.piped.utils.obj.db;
+
+import jakarta.persistence.*;
+
+@Entity
+@Table(name = "clips")
+public class Clip {
+
+    @Id
+    @Column(name = "id", unique = true, nullable = false, length = 64)
+    private String id;
+
+    @Column(name = "video_id", nullable = false, length = 16)
+    private String videoId;
+
+    public Clip() {
+    }
+
+    public Clip(String id, String videoId) {
+        this.id = id;
+        this.videoId = videoId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getVideoId() {
+        return videoId;
+    }
+
+    public void setVideoId(String videoId) {
+        this.videoId = videoId;
+    }
+}
@@ -0,0 +1,48 @@
+package me.kavin.piped.utils.obj.db;
+
+import jakarta.persistence.*;
+
+@Entity
+@Table(name = "lbry_mappings", indexes = {@Index(columnList = "updated", name = "lbry_mappings_updated_idx")})
+public class LbryMapping {
+
+    @Id
+    @Column(name = "id", unique = true, nullable = false, length = 16)
+    private String id;
+
+    // null if the video isn't mirrored on LBRY
+    @Column(name = "lbry_id", length = 128)
+    private String lbryId;
+
+    @Column(name = "updated", nullable = false)
+    private long updated;
+
+    public LbryMapping() {
+    }
+
+    public LbryMapping(String id, String lbryId, long updated) {
+        this.id = id;
+        this.lbryId = lbryId;
+        this.updated = updated;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getLbryId() {
+        return lbryId;
+    }
+
+    public void setLbryId(String lbryId) {
+        this.lbryId = lbryId;
+    }
+
+    public long getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(long updated) {
+        this.updated = updated;
+    }
+}
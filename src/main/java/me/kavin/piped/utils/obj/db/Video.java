@@ -5,7 +5,9 @@ import jakarta.persistence.*;
 @Entity
 @Table(name = "videos", indexes = {@Index(columnList = "id", name = "videos_id_idx"),
         @Index(columnList = "uploader_id", name = "video_uploader_id_idx"),
-        @Index(columnList = "uploaded", name = "video_uploaded_idx")})
+        @Index(columnList = "uploaded", name = "video_uploaded_idx"),
+        @Index(columnList = "uploader_id, uploaded DESC", name = "video_uploader_id_uploaded_idx"),
+        @Index(columnList = "inserted", name = "video_inserted_idx")})
 public class Video {
 
     @Id
@@ -24,6 +26,10 @@ public class Video {
     @Column(name = "uploaded")
     private long uploaded;
 
+    // when the video was first inserted, which can be long after it was uploaded
+    @Column(name = "inserted", nullable = false)
+    private long inserted;
+
     @Column(name = "thumbnail", length = 400)
     private String thumbnail;
 
@@ -88,6 +94,14 @@ public class Video {
         this.uploaded = uploaded;
     }
 
+    public long getInserted() {
+        return inserted;
+    }
+
+    public void setInserted(long inserted) {
+        this.inserted = inserted;
+    }
+
     public String getThumbnail() {
         return thumbnail;
     }
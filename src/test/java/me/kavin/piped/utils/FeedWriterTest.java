@@ -0,0 +1,152 @@
+package me.kavin.piped.utils;
+
+import com.rometools.rome.io.FeedException;
+import me.kavin.piped.consts.Constants;
+import me.kavin.piped.utils.LegacyFeedOutput.Item;
+import me.kavin.piped.utils.obj.db.Channel;
+import me.kavin.piped.utils.obj.db.Video;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static me.kavin.piped.utils.SampleFeeds.NOW;
+import static me.kavin.piped.utils.URLUtils.rewriteURL;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class FeedWriterTest {
+
+    private static final List<String> TITLES = List.of(
+            "",
+            "   ",
+            "  padded title\t",
+            "a <b>bold</b> & \"quoted\" 'title' > 1",
+            "line\nbreaks\r\nand\ttabs",
+            "é ñ ü ß € 中文 日本語 한국어",
+            "emoji 😀🎉 and 𝄞 outside the BMP",
+            "]]> <![CDATA[ not cdata",
+            "&amp; already escaped &#x41;"
+    );
+
+    @Test
+    public void matchesRomeAtomFeed() throws FeedException {
+        assertAtomLikeRome(null, null, SampleFeeds.videos(100));
+    }
+
+    @Test
+    public void matchesRomeAtomFeedOfUser() throws FeedException {
+        assertAtomLikeRome("some <user> & \"friends\"", null, SampleFeeds.videos(20));
+    }
+
+    @Test
+    public void matchesRomeAtomFeedOfChannel() throws FeedException {
+        List<Video> videos = SampleFeeds.videos(20);
+        assertAtomLikeRome(null, videos.getFirst().getChannel(), videos);
+    }
+
+    @Test
+    public void matchesRomeEmptyAtomFeed() throws FeedException {
+        assertAtomLikeRome(null, null, List.of());
+        assertAtomLikeRome("user", new Channel("UC0000000000000000000000", "Empty", "https://yt3.ggpht.com/empty=s176-c-k-c0x00ffffff-no-rj", false), List.of());
+    }
+
+    @Test
+    public void matchesRomeAtomFeedOfEdgeCases() throws FeedException {
+        final List<Video> videos = new ArrayList<>();
+
+        for (Video video : SampleFeeds.videos(TITLES.size() + 1)) {
+            video.setTitle(videos.size() < TITLES.size() ? TITLES.get(videos.size()) : null);
+            videos.add(video);
+        }
+
+        final Channel unnamed = new Channel("UC1111111111111111111111", null, null, false);
+        final Channel markup = new Channel("UC2222222222222222222222", "  <Tom & Jerry> 😀 ", "https://yt3.ggpht.com/a=s48", true);
+        videos.getFirst().setChannel(unnamed);
+        videos.getLast().setChannel(markup);
+
+        assertAtomLikeRome(null, null, videos);
+        assertAtomLikeRome(null, markup, videos);
+    }
+
+    @Test
+    public void leavesOutIllegalCharacters() {
+        final List<Video> videos = SampleFeeds.videos(1);
+        videos.getFirst().setTitle("bell\u0007 and \uFFFF lone \uD800 surrogate");
+
+        assertThrows(RuntimeException.class, () -> LegacyFeedOutput.atom(null, null, videos, NOW));
+
+        String xml = new String(atom(null, null, videos), UTF_8);
+        assertFalse(xml.contains("\u0007") || xml.contains("\uFFFF") || xml.contains("\uD800"));
+    }
+
+    @Test
+    public void matchesRomeRssFeed() throws FeedException {
+        final List<Item> items = new ArrayList<>();
+
+        for (Video video : SampleFeeds.videos(50)) {
+            String url = Constants.FRONTEND_URL + "/video?id=" + video.getId();
+            items.add(new Item(video.getTitle(), url, url, video.getChannel().getUploader()));
+        }
+
+        assertRssLikeRome("My <Playlist> & more", "https://piped.video/playlist?list=PL123", "someone", items);
+    }
+
+    @Test
+    public void matchesRomeRssFeedOfEdgeCases() throws FeedException {
+        final List<Item> items = new ArrayList<>();
+
+        items.add(new Item(null, null, null, null));
+        items.add(new Item("title only", null, null, null));
+        items.add(new Item(null, "https://www.youtube.com/watch?v=dQw4w9WgXcQ", null, null));
+        items.add(new Item(null, null, "https://www.youtube.com/watch?v=dQw4w9WgXcQ", null));
+        items.add(new Item(null, null, null, "author only"));
+        for (String title : TITLES)
+            items.add(new Item(title, "https://www.youtube.com/watch?v=dQw4w9WgXcQ&t=1", "https://www.youtube.com/watch?v=dQw4w9WgXcQ&t=1", title));
+
+        assertRssLikeRome("", "https://piped.video/playlist?list=PL123", " - Piped", null, items);
+        assertRssLikeRome("😀 \"quoted\"", "https://piped.video/playlist?list=PL&x=<y>", "😀 \"quoted\" - Piped", "  ", items);
+        assertRssLikeRome("empty", "https://piped.video/playlist?list=PL123", "empty - Piped", "someone", List.of());
+    }
+
+    private static void assertAtomLikeRome(@Nullable String username, @Nullable Channel channel, List<Video> videos)
+            throws FeedException {
+        assertEquals(new String(LegacyFeedOutput.atom(username, channel, videos, NOW), UTF_8),
+                new String(atom(username, channel, videos), UTF_8));
+    }
+
+    private static void assertRssLikeRome(String title, String link, @Nullable String author, List<Item> items)
+            throws FeedException {
+        assertRssLikeRome(title, link, String.format("%s - Piped", title), author, items);
+    }
+
+    private static void assertRssLikeRome(String title, String link, String description, @Nullable String author,
+                                          List<Item> items) throws FeedException {
+        FeedWriter feed = FeedWriter.rss(title, link, description, author, NOW);
+        items.forEach(item -> feed.item(item.title(), item.link(), item.uri(), item.author()));
+
+        assertEquals(new String(LegacyFeedOutput.rss(title, link, description, author, NOW, items), UTF_8),
+                new String(feed.finish(), UTF_8));
+    }
+
+    /**
+     * The feed {@link FeedHelpers#createRssFeed} starts, at a fixed time.
+     */
+    private static byte[] atom(@Nullable String username, @Nullable Channel channel, List<Video> videos) {
+        String description = username == null ?
+                "Piped's RSS unauthenticated subscription feed." :
+                String.format("Piped's RSS subscription feed for %s.", username);
+
+        FeedWriter feed = channel == null ?
+                FeedWriter.atom("Piped - Feed", description, Constants.FRONTEND_URL + "/feed", null, NOW) :
+                FeedWriter.atom("Piped - " + channel.getUploader(), description, Constants.FRONTEND_URL + "/feed",
+                        rewriteURL(channel.getUploaderAvatar()), NOW);
+
+        videos.forEach(video -> feed.entry(video, video.getChannel()));
+
+        return feed.finish();
+    }
+}
@@ -0,0 +1,138 @@
+package me.kavin.piped.utils;
+
+import com.rometools.modules.mediarss.MediaEntryModuleImpl;
+import com.rometools.modules.mediarss.types.MediaContent;
+import com.rometools.modules.mediarss.types.Metadata;
+import com.rometools.modules.mediarss.types.PlayerReference;
+import com.rometools.modules.mediarss.types.Thumbnail;
+import com.rometools.rome.feed.synd.*;
+import com.rometools.rome.io.FeedException;
+import com.rometools.rome.io.SyndFeedOutput;
+import me.kavin.piped.consts.Constants;
+import me.kavin.piped.utils.obj.db.Channel;
+import me.kavin.piped.utils.obj.db.Video;
+import org.apache.commons.lang3.time.DurationFormatUtils;
+import org.apache.commons.text.StringEscapeUtils;
+
+import javax.annotation.Nullable;
+import java.net.URI;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static me.kavin.piped.utils.URLUtils.rewriteURL;
+
+/**
+ * The feeds Rome used to render before {@link FeedWriter}, kept as a reference for its output.
+ */
+public class LegacyFeedOutput {
+
+    /**
+     * A playlist item, with the values the handlers passed to Rome.
+     */
+    public record Item(@Nullable String title, @Nullable String link, @Nullable String uri, @Nullable String author) {
+    }
+
+    public static byte[] atom(@Nullable String username, @Nullable Channel channel, List<Video> videos, long published)
+            throws FeedException {
+        SyndFeed feed = new SyndFeedImpl();
+        feed.setFeedType("atom_1.0");
+        feed.setTitle("Piped - Feed");
+
+        if (username == null) {
+            feed.setDescription("Piped's RSS unauthenticated subscription feed.");
+        } else {
+            feed.setDescription(String.format("Piped's RSS subscription feed for %s.", username));
+        }
+
+        feed.setUri(Constants.FRONTEND_URL + "/feed");
+        feed.setPublishedDate(new Date(published));
+
+        if (channel != null)
+            addChannelInformation(feed, channel);
+
+        feed.setEntries(videos.stream()
+                .map(video -> createEntry(video, video.getChannel()))
+                .toList());
+
+        return new SyndFeedOutput().outputString(feed).getBytes(UTF_8);
+    }
+
+    public static byte[] rss(String title, String link, String description, @Nullable String author, long published,
+                             List<Item> items) throws FeedException {
+        SyndFeed feed = new SyndFeedImpl();
+        feed.setFeedType("rss_2.0");
+        feed.setTitle(title);
+        feed.setAuthor(author);
+        feed.setDescription(description);
+        feed.setLink(link);
+        feed.setPublishedDate(new Date(published));
+
+        feed.setEntries(items.stream().map(item -> {
+            SyndEntry entry = new SyndEntryImpl();
+            entry.setAuthor(item.author());
+            entry.setLink(item.link());
+            entry.setUri(item.uri());
+            entry.setTitle(item.title());
+            return entry;
+        }).toList());
+
+        return new SyndFeedOutput().outputString(feed).getBytes(UTF_8);
+    }
+
+    private static SyndEntry createEntry(Video video, Channel channel) {
+        SyndEntry entry = new SyndEntryImpl();
+        SyndPerson person = new SyndPersonImpl();
+        SyndContent content = new SyndContentImpl();
+        SyndContent thumbnail = new SyndContentImpl();
+
+        person.setName(channel.getUploader());
+        person.setUri(Constants.FRONTEND_URL + "/channel/" + channel.getUploaderId());
+        entry.setAuthors(Collections.singletonList(person));
+        entry.setLink(Constants.FRONTEND_URL + "/watch?v=" + video.getId());
+        entry.setUri(Constants.FRONTEND_URL + "/watch?v=" + video.getId());
+
+        entry.setTitle(video.getTitle());
+        entry.setPublishedDate(new Date(video.getUploaded()));
+
+        String contentText = String.format("Title: %s\nViews: %d\nId: %s\nDuration: %s\nIs YT Shorts: %b", video.getTitle(), video.getViews(), video.getId(), DurationFormatUtils.formatDuration(video.getDuration() * 1000, "[HH]':'mm':'ss"), video.isShort());
+        content.setValue(contentText);
+
+        String thumbnailContent =
+                String.format("<div xmlns=\"http://www.w3.org/1999/xhtml\"><a href=\"%s\"><img src=\"%s\"/></a></div>",
+                        Constants.FRONTEND_URL + "/watch?v=" + video.getId(),
+                        StringEscapeUtils.escapeXml11(rewriteURL(video.getThumbnail()))
+                );
+        thumbnail.setType("xhtml");
+        thumbnail.setValue(thumbnailContent);
+
+        entry.setContents(List.of(thumbnail, content));
+
+        String playerUrl = Constants.FRONTEND_URL + "/embed/" + video.getId();
+        MediaContent media = new MediaContent(new PlayerReference(URI.create(playerUrl)));
+        media.setDuration(video.getDuration());
+
+        Metadata metadata = new Metadata();
+        metadata.setTitle(video.getTitle());
+        Thumbnail metadataThumbnail = new Thumbnail(URI.create(video.getThumbnail()));
+        metadata.setThumbnail(new Thumbnail[]{metadataThumbnail});
+        media.setMetadata(metadata);
+
+        MediaEntryModuleImpl mediaModule = new MediaEntryModuleImpl();
+        mediaModule.setMediaContents(new MediaContent[]{media});
+        entry.getModules().add(mediaModule);
+
+        return entry;
+    }
+
+    private static void addChannelInformation(SyndFeed feed, Channel channel) {
+        feed.setTitle("Piped - " + channel.getUploader());
+        SyndImage channelIcon = new SyndImageImpl();
+        channelIcon.setLink(Constants.FRONTEND_URL + "/channel/" + channel.getUploaderId());
+        channelIcon.setTitle(channel.getUploader());
+        channelIcon.setUrl(rewriteURL(channel.getUploaderAvatar()));
+        feed.setIcon(channelIcon);
+        feed.setImage(channelIcon);
+    }
+}
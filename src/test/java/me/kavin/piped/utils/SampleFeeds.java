@@ -0,0 +1,47 @@
+package me.kavin.piped.utils;
+
+import me.kavin.piped.utils.obj.db.Channel;
+import me.kavin.piped.utils.obj.db.Video;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Videos shaped like the ones of a subscription feed, which is what {@link FeedWriter} spends most of its time on.
+ */
+public class SampleFeeds {
+
+    // a fixed time, so that the feeds are the same on every run
+    public static final long NOW = 1760690400000L;
+
+    private static final String[] TITLES = {
+            "I Built a Working Computer Inside Minecraft",
+            "The Best Budget Phones of 2026 (So Far)",
+            "Why Trains in Japan Are Never Late",
+            "10 Hours of Relaxing Rain Sounds for Sleep & Study",
+            "Reacting to \"The Worst\" Car Reviews <Part 2>",
+            "Cómo hacer pan casero — receta fácil",
+            "【作業用BGM】落ち着くピアノ曲集",
+            "We Tried Every Fast Food Burger 🍔🔥",
+            "Speedrun World Record Explained | Any% Glitchless",
+            "Live: Rocket Launch Coverage"
+    };
+
+    public static List<Video> videos(int count) {
+        final List<Channel> channels = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            channels.add(new Channel("UC" + String.format("%022d", i * 7919L), "Channel " + i + (i % 3 == 0 ? " & Friends" : ""),
+                    "https://yt3.ggpht.com/ytc/AIdro_channel" + i + "=s176-c-k-c0x00ffffff-no-rj", i % 2 == 0));
+
+        final List<Video> videos = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String id = String.format("v%010d", i * 104729L);
+            videos.add(new Video(id, TITLES[i % TITLES.length], 1000L * i + 17, 60L + i * 37 % 3600,
+                    NOW - TimeUnit.MINUTES.toMillis(37L * i), "https://i.ytimg.com/vi/" + id + "/hqdefault.jpg", i % 5 == 0,
+                    channels.get(i % channels.size())));
+        }
+
+        return videos;
+    }
+}
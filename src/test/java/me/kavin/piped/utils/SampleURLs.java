@@ -0,0 +1,70 @@
+package me.kavin.piped.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * URLs shaped like the ones of a single StreamInfo response, which is what {@link URLUtils#rewriteURL} spends most of
+ * its time on.
+ */
+public class SampleURLs {
+
+    private static final String VIDEO_ID = "dQw4w9WgXcQ";
+
+    private static final String[] RELATED_IDS = {
+            "yPYZpwSpKmA", "fJ9rUzIMcZQ", "kJQP7kiw5Fk", "9bZkp7q19f0", "OPf0YbXqDm0", "JGwWNGJdvx8",
+            "RgKAFK5djSk", "CevxZvSJLk8", "hT_nvWreIhg", "YQHsXMglC9A", "pRpeEdMmmQ0", "60ItHLz5WEA",
+            "09R8_2nJtjg", "lp-EO5I60KA", "YqeW9_5kURI", "uelHwf8o7_U", "nfWlot6h_JM", "2Vv-BfVoq4g",
+            "hLQl3WQQoQ0", "e-ORhEE9VVg"
+    };
+
+    private static final int[] ITAGS = {
+            18, 133, 134, 135, 136, 137, 160, 242, 243, 244, 247, 248, 278, 298, 299, 302, 303, 308, 394, 395,
+            396, 397, 398, 399, 139, 140, 249, 250, 251
+    };
+
+    public static List<String> streamInfo() {
+        final List<String> urls = new ArrayList<>();
+
+        for (int itag : ITAGS)
+            urls.add("https://rr3---sn-4g5ednsz.googlevideo.com/videoplayback?expire=1760712000&ei=wB7xaNn2Ibf-6dsPq5jJqQ0" +
+                    "&ip=203.0.113.7&id=o-AJt5kX0r3Qe2l5zQ8yWk1pVfHc3N7yF2bKxJm9dWsT4u&itag=" + itag +
+                    "&aitags=133%2C134%2C135%2C136%2C137%2C160%2C242%2C243%2C244%2C247%2C248%2C278&source=youtube" +
+                    "&requiressl=yes&xpc=EgVo2aDSNA%3D%3D&met=1760690400%2C&mh=7c&mm=31%2C29&mn=sn-4g5ednsz%2Csn-4g5lznlz" +
+                    "&ms=au%2Crdu&mv=m&mvi=3&pl=24&rms=au%2Cau&initcwndbps=1863750&bui=AdEuB5S4u1Fk0p3Xy2HhV7qJ" +
+                    "&spc=6b0G_Ly3dR7tQ&vprv=1&svpuc=1&mime=video%2Fmp4&ns=8Zq2wN3bXyT1vK&rqh=1&gir=yes&clen=" + (itag * 104729L) +
+                    "&dur=212.040&lmt=1706325373573562&mt=1760690021&fvip=3&keepalive=yes&fexp=51326932%2C51355912" +
+                    "&c=WEB&sefc=1&txp=4532434&n=Q2b9wA7cKx3mVt&sparams=expire%2Cei%2Cip%2Cid%2Caitags%2Csource%2Crequiressl" +
+                    "%2Cxpc%2Cbui%2Cspc%2Cvprv%2Csvpuc%2Cmime%2Cns%2Crqh%2Cgir%2Cclen%2Cdur%2Clmt" +
+                    "&sig=AJfQdSswRQIhAKQ1n8p6Z3rE2tW0yL5kVb7mXc4sJ9dF1gH2iU3oP4qAiBx5yT6uV7wX8zY9aB0cD1eF2gH3iJ4kL5mN6oP7qR8sT9w%3D%3D" +
+                    "&lsparams=met%2Cmh%2Cmm%2Cmn%2Cms%2Cmv%2Cmvi%2Cpl%2Crms%2Cinitcwndbps" +
+                    "&lsig=APaTxxMwRAIgN3kP8zQ1wE5rT7yU9iO2pA4sD6fG8hJ0kL1zX3cV5bN7AiBmQ9wE2rT4yU6iO8pA0sD2fG4hJ6kL8zX0cV2bN4mQ6w%3D%3D");
+
+        for (String quality : new String[]{"default", "mqdefault", "hqdefault", "sddefault", "maxresdefault"})
+            urls.add("https://i.ytimg.com/vi/" + VIDEO_ID + "/" + quality + ".jpg?sqp=-oaymwEbCKgBEF5IVfKriqkDDggBFQAAiEIYAXABwAEG" +
+                    "&rs=AOn4CLBAo8fh9Bfjr2kQoZX7RzQ7iakGJQ");
+        urls.add("https://i.ytimg.com/vi_webp/" + VIDEO_ID + "/maxresdefault.webp");
+
+        urls.add("https://yt3.ggpht.com/ytc/AIdro_kX4tB4gYz-8wVwZ0x5rxE-e6bXK_pUZF2nh7OTxQ=s48-c-k-c0x00ffffff-no-rj");
+        urls.add("https://yt3.ggpht.com/ytc/AIdro_kX4tB4gYz-8wVwZ0x5rxE-e6bXK_pUZF2nh7OTxQ=s176-c-k-c0x00ffffff-no-rj");
+
+        for (int level = 0; level < 4; level++)
+            urls.add("https://i.ytimg.com/sb/" + VIDEO_ID + "/storyboard3_L" + level + "/M$M.jpg" +
+                    "?sqp=-oaymwENSDfyq4qpAwVwAcABBqLzl_8DBgjI1_-zBg==&sigh=rs$AOn4CLDq0E3qkJmKc6N1bX8vT2pL9yR4wQ");
+
+        for (String lang : new String[]{"en", "de", "es", "fr", "ja"})
+            urls.add("https://www.youtube.com/api/timedtext?v=" + VIDEO_ID + "&ei=wB7xaNn2Ibf-6dsPq5jJqQ0&caps=asr" +
+                    "&opi=112496729&xoaf=5&hl=en&ip=0.0.0.0&ipbits=0&expire=1760715600" +
+                    "&sparams=ip%2Cipbits%2Cexpire%2Cv%2Cei%2Ccaps%2Copi%2Cxoaf" +
+                    "&signature=8F1C2A7B9E0D3F4A5B6C7D8E9F0A1B2C3D4E5F60.1A2B3C4D5E6F7A8B9C0D1E2F3A4B5C6D7E8F9A0B" +
+                    "&key=yt8&lang=" + lang + "&fmt=vtt");
+
+        for (String id : RELATED_IDS) {
+            urls.add("https://i.ytimg.com/vi/" + id + "/hqdefault.jpg?sqp=-oaymwEcCNACELwBSFXyq4qpAw4IARUAAIhCGAFwAcABBg==" +
+                    "&rs=AOn4CLCfRz3xq8yQ2wE5pL7kV9nT1bM4sA");
+            urls.add("https://yt3.ggpht.com/" + id + "Avatar_x9Q=s68-c-k-c0x00ffffff-no-rj");
+        }
+
+        return urls;
+    }
+}